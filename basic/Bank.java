@@ -1,46 +1,201 @@
+import java.io.BufferedOutputStream;    // Byte-counted snapshot writes in lazy mode
 import java.io.BufferedReader;          // For reading text from a file
 import java.io.BufferedWriter;          // For writing text to a file
 import java.io.IOException;             // For handling I/O errors
+import java.io.InputStreamReader;       // Socket → text lines
+import java.io.OutputStreamWriter;      // Text lines → socket
+import java.io.PrintWriter;             // Rejects file for batch runs
+import java.io.InputStream;             // Byte-level snapshot scans in lazy mode
+import java.io.OutputStream;            // Byte-level snapshot writes in lazy mode
+import java.io.UncheckedIOException;    // I/O failure where a checked one can't go
+import java.lang.invoke.MethodHandles;  // Volatile access to balance columns
+import java.lang.invoke.VarHandle;
+import java.util.zip.DataFormatException; // Corrupt history block
+import java.util.zip.Deflater;          // Compressing sealed history blocks
+import java.util.zip.Inflater;          // Reading them back
+import java.math.BigDecimal;            // Exact text ↔ cents conversion
+import java.math.RoundingMode;          // Rounding input to whole cents
+import java.net.InetSocketAddress;      // Server bind address
+import java.net.ServerSocket;           // `java Bank serve`
+import java.net.Socket;                 // One client connection
+import java.nio.ByteBuffer;             // Staging buffer for a journal batch
+import java.nio.MappedByteBuffer;       // Binary account store, mapped into memory
+import java.nio.channels.FileChannel;   // Journal writes + force() for durability
+import java.nio.charset.StandardCharsets; // Journal records are UTF-8 text
 import java.nio.file.FileAlreadyExistsException; // To catch “file exists” on create
 import java.nio.file.Files;             // Utility class for file operations
 import java.nio.file.Path;              // Represents file paths
 import java.nio.file.Paths;             // To build Path instances
-import java.util.HashMap;               // In-memory map implementation
+import java.nio.file.DirectoryStream;   // Listing sealed history segments
+import java.nio.file.NoSuchFileException; // First sweep: no job counter yet
+import java.nio.file.StandardCopyOption; // For the atomic snapshot rename
+import java.nio.file.StandardOpenOption; // For opening the journal in append mode
+import java.time.Instant;               // Statement timestamps
+import java.time.LocalDate;             // Statement date range
+import java.time.ZoneId;                // Local midnight for date ranges
+import java.time.format.DateTimeFormatter;     // Statement rows
+import java.time.format.DateTimeParseException; // Bad date input
+import java.util.ArrayList;             // Pending journal records
+import java.util.Arrays;                // Growing the mapped chunk table
+import java.util.BitSet;                // Sweep ranges already finished
+import java.util.Collections;           // Reversing the newest-first history walk
+import java.util.List;                  // List interface
 import java.util.Map;                   // Map interface
 import java.util.Scanner;               // For reading console input
+import java.util.concurrent.ArrayBlockingQueue;     // Bounded hand-off to batch workers
+import java.util.concurrent.BlockingQueue;          // Queue interface
+import java.util.concurrent.ConcurrentHashMap;      // Thread-safe map implementation
+import java.util.concurrent.ConcurrentSkipListMap;  // Sealed history segments by start time
+import java.util.concurrent.CountDownLatch;         // Starting load-generator clients together
+import java.util.concurrent.ExecutionException;     // A load-generator client failed
+import java.util.concurrent.ExecutorService;        // One task per connection
+import java.util.concurrent.Executors;              // Virtual-thread or cached pool
+import java.util.concurrent.ForkJoinPool;           // Running sweep jobs
+import java.util.concurrent.Future;                 // Waiting on load-generator clients
+import java.util.concurrent.RecursiveAction;        // Splitting the account space
+import java.util.concurrent.TimeUnit;               // Polling a batch worker's queue
+import java.util.concurrent.atomic.AtomicInteger;   // Lock-free account number counter
+import java.util.concurrent.atomic.AtomicLong;      // Batch counters shared by workers
+import java.util.concurrent.atomic.AtomicLongArray; // Latency histogram buckets
+import java.util.concurrent.atomic.AtomicReference; // First batch worker failure
+import java.util.concurrent.locks.Condition;        // Flusher ↔ session hand-off
+import java.util.concurrent.locks.ReentrantLock;    // One lock per account stripe
+import java.util.concurrent.locks.ReentrantReadWriteLock; // Swapping the lazy index
+import java.util.concurrent.locks.StampedLock;      // Optimistic reads on the account table
+import java.util.function.Consumer;     // Visiting every account in the table
 
 public class Bank {
     // ────────────────────────────────────────────────────────────────────────────
     // 1) Constants & In-Memory Storage
     // ────────────────────────────────────────────────────────────────────────────
 
-    private static final Path DB_PATH =    // Path to our flat-file DB
+    private static final Path DB_PATH =    // Path to our flat-file DB (snapshot)
         Paths.get("data", "users.txt");
 
-    private final Map<Integer,User> usersByAccount = new HashMap<>();  
-    // Keyed by accountNumber → User
+    private static final Path SNAPSHOT_TMP_PATH =  // Snapshot is written here first,
+        Paths.get("data", "users.txt.tmp");       // then renamed over DB_PATH
 
-    private final Map<String,User> usersByName = new HashMap<>();      
+    private static final Path JOURNAL_PATH =       // Append-only log of changes
+        Paths.get("data", "users.journal");       // made since the last snapshot
+
+    private static final Path JOURNAL_TMP_PATH =   // Journal minus what a snapshot
+        Paths.get("data", "users.journal.tmp");   // covers, then renamed over it
+
+    private static final Path INDEX_PATH =         // account → offset and name →
+        Paths.get("data", "users.idx");           // account index for `java Bank lazy`
+
+    private static final Path INDEX_TMP_PATH =
+        Paths.get("data", "users.idx.tmp");
+
+    private static final Path MAPPED_PATH =        // Fixed-width binary store
+        Paths.get("data", "users.dat");           // used by `java Bank mapped`
+
+    private static final Path HISTORY_DIR =        // Statement segments
+        Paths.get("data", "history");
+
+    private static final int COMPACT_EVERY = Integer.getInteger("bank.compactEvery", 1000);
+    // Journal records written before we fold them into a fresh snapshot
+    // (at least one per account in memory, so a snapshot's O(accounts) cost
+    // is spread over as many records and each change stays O(1) amortized)
+
+    private static final long BATCH_WINDOW_MS = Long.getLong("bank.batchWindowMs", 2);
+    // How long the journal waits for more records before forcing a batch
+
+    private static final int BATCH_SIZE = Integer.getInteger("bank.batchSize", 256);
+    // A batch is forced as soon as it holds this many records
+    // (e.g. java -Dbank.batchWindowMs=5 -Dbank.batchSize=1024 Bank)
+
+    private static final int LOCK_STRIPES = 256;
+    // Number of balance locks; accounts share a lock only when they hash together
+
+    private final AccountTable usersByAccount = new AccountTable();
+    // Keyed by accountNumber → User, plus every balance (primitive columns)
+
+    private final Map<String,User> usersByName = new ConcurrentHashMap<>();
     // Keyed by username → same User
 
-    private int nextAccountNumber = 1001;  
-    // Tracks the next unique account number
+    private final AtomicInteger nextAccountNumber = new AtomicInteger(1001);
+    // Tracks the next unique account number (safe to draw from any thread)
+
+    private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+    // stripes[i] guards the balance of every account whose stripeOf() == i
+
+    private MappedAccountStore mapped;     // Non-null when running on users.dat
+    private SnapshotIndex lazyIndex;       // Non-null when accounts load on demand
+    private TransactionHistory history;    // Per-account statements (data/history/)
+    private GroupCommitJournal journal;    // Batches + forces records to JOURNAL_PATH
+    private int journalRecords = 0;        // Records replayed from the journal at load
+
+    Bank() {
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
 
     // ────────────────────────────────────────────────────────────────────────────
     // 2) main() → Entry Point
     // ────────────────────────────────────────────────────────────────────────────
 
+    //   java Bank            → menu, users.txt snapshot + journal
+    //   java Bank lazy       → same files, but accounts are read on first use
+    //   java Bank mapped     → menu, binary users.dat store
+    //   java Bank migrate    → one-shot copy of users.txt (+ journal) into users.dat
+    //   java Bank batch <file> [threads]
+    //                        → apply a D/W instruction file without the menu
+    //   java Bank serve [port]
+    //                        → line protocol over TCP instead of the menu
+    //   java Bank loadgen [host] [port] [clients] [requests]
+    //                        → hammer a running server and report latency
+    //   java Bank sweep interest <basis points> | fee <amount> <below>
+    //                        → end-of-day job over every account (resumable)
+
     public static void main(String[] args) {
-        new Bank().run();   // Instantiate & hand off control
+        String mode = args.length > 0 ? args[0] : "";
+        switch (mode) {
+            case "":        new Bank().run("text");   break;  // Instantiate & hand off control
+            case "lazy":    new Bank().run("lazy");   break;
+            case "mapped":  new Bank().run("mapped"); break;
+            case "migrate": new Bank().migrate();     break;
+            case "batch":
+                if (args.length < 2) {
+                    System.out.println("Usage: java Bank batch <file> [threads]");
+                    break;
+                }
+                int threads = args.length > 2 ? Integer.parseInt(args[2])
+                                               : Runtime.getRuntime().availableProcessors();
+                if (!new Bank().runBatch(Paths.get(args[1]), threads)) {
+                    System.exit(1);
+                }
+                break;
+            case "serve":
+                new Bank().serve(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+                break;
+            case "loadgen":
+                loadGenerator(args.length > 1 ? args[1] : "localhost",
+                              args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_PORT,
+                              args.length > 3 ? Integer.parseInt(args[3]) : 100,
+                              args.length > 4 ? Integer.parseInt(args[4]) : 1000);
+                break;
+            case "sweep": {
+                Bank bank = new Bank();
+                if (bank.open("text")) {
+                    bank.runSweep(Arrays.copyOfRange(args, 1, args.length));
+                    bank.shutdown();
+                }
+                break;
+            }
+            default: System.out.println("Usage: java Bank [lazy | mapped | migrate | batch | serve | loadgen | sweep]");
+        }
     }
 
     // ────────────────────────────────────────────────────────────────────────────
     // 3) run() → Loads data, shows menu, handles exit
     // ────────────────────────────────────────────────────────────────────────────
 
-    private void run() {
-        ensureDbFileExists();  // Make sure data/ directory & file exist
-        loadUsers();           // Read the file once into memory
+    private void run(String store) {
+        if (!open(store)) {
+            return;
+        }
 
         Scanner input = new Scanner(System.in);
         String choice;
@@ -58,7 +213,10 @@ public class Bank {
             switch (choice) {
                 case "1": createAccount(input);   break;
                 case "2": accessAccount(input);   break;
-                case "3": System.out.println("Goodbye!"); break;
+                case "3":
+                    shutdown();
+                    System.out.println("Goodbye!");
+                    break;
                 default:  System.out.println("Invalid selection.");
             }
         } while (!choice.equals("3"));
@@ -66,6 +224,82 @@ public class Bank {
         input.close();  // Clean up Scanner
     }
 
+    // Loads accounts from the chosen backend ("text", "lazy" or "mapped");
+    // false if that failed
+    private boolean open(String store) {
+        ensureDbFileExists();  // Make sure data/ directory & file exist
+        try {
+            history = new TransactionHistory(HISTORY_DIR);
+        } catch (IOException e) {
+            // Balances don't depend on it, so carry on without statements
+            System.out.println("Error opening transaction history: " + e.getMessage());
+        }
+        if (store.equals("text")) {
+            loadUsers();       // Read the file once into memory
+            return true;
+        }
+        if (store.equals("lazy")) {
+            try {
+                lazyIndex = SnapshotIndex.openOrBuild(this);
+            } catch (IOException e) {
+                System.out.println("Error opening " + INDEX_PATH + ": " + e.getMessage());
+                return false;
+            }
+            replayJournal();   // Only touches the accounts the journal names
+            openJournal();
+            return true;
+        }
+        try {
+            mapped = new MappedAccountStore(MAPPED_PATH);
+            mapped.loadInto(this);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error opening " + MAPPED_PATH + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private void shutdown() {
+        if (history != null) {
+            history.close();
+        }
+        if (mapped != null) {
+            mapped.close();    // Every write is already in place
+            return;
+        }
+        closeJournal();        // Wait for the last batch to be durable
+        compact();             // Leave a clean snapshot behind
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 3b) migrate() → users.txt (+ journal) → users.dat, in one pass
+    // ────────────────────────────────────────────────────────────────────────────
+
+    private void migrate() {
+        ensureDbFileExists();
+        loadUsers();           // Snapshot + journal replay = current state
+        closeJournal();
+
+        try {
+            Files.deleteIfExists(MAPPED_PATH);   // Start from an empty store
+            MappedAccountStore store = new MappedAccountStore(MAPPED_PATH);
+            AtomicInteger count = new AtomicInteger();
+            usersByAccount.forEach(u -> {
+                // close() forces everything once
+                if (store.write(u, usersByAccount.balance(u), usersByAccount.lastSweep(u))) {
+                    count.incrementAndGet();
+                } else {
+                    System.out.println("Skipped account " + u.accountNumber
+                                     + ": name or password too long for a record.");
+                }
+            });
+            store.close();
+            System.out.println("Migrated " + count + " accounts into " + MAPPED_PATH + ".");
+        } catch (IOException e) {
+            System.out.println("Error migrating users: " + e.getMessage());
+        }
+    }
+
     // ────────────────────────────────────────────────────────────────────────────
     // 4) ensureDbFileExists() → Prepares data/users.txt
     // ────────────────────────────────────────────────────────────────────────────
@@ -82,178 +316,3044 @@ public class Bank {
     }
 
     // ────────────────────────────────────────────────────────────────────────────
-    // 5) loadUsers() → Reads every line into User objects & maps
+    // 5) loadUsers() → Reads the snapshot, then replays the journal on top
     // ────────────────────────────────────────────────────────────────────────────
 
     private void loadUsers() {
         try (BufferedReader reader = Files.newBufferedReader(DB_PATH)) {
             String line;
             while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");    // CSV: acc,name,pass,balance
-                if (parts.length == 4) {
-                    int accNum    = Integer.parseInt(parts[0]);
-                    String name  = parts[1];
-                    String pass  = parts[2];
-                    double bal   = Double.parseDouble(parts[3]);
-
-                    User u = new User(accNum, name, pass, bal);
-                    usersByAccount.put(accNum, u);
-                    usersByName.put(name, u);
-
-                    // Keep nextAccountNumber strictly greater
-                    if (accNum >= nextAccountNumber) {
-                        nextAccountNumber = accNum + 1;
-                    }
-                }
+                putParsedUser(line);
             }
         } catch (IOException e) {
             System.out.println("Error loading users: " + e.getMessage());
         }
+
+        replayJournal();   // Bring the snapshot up to date
+        openJournal();     // Ready for new records
+    }
+
+    // One snapshot line → a User in both maps, or null if the line isn't a
+    // full record
+    private User putParsedUser(String line) {
+        String[] parts = line.split(",");    // CSV: acc,name,pass,balance[,lastSweep]
+        if (parts.length != 4 && parts.length != 5) {
+            return null;
+        }
+        int accNum    = Integer.parseInt(parts[0]);
+        String name  = parts[1];
+        String pass  = parts[2];
+        long bal     = parseCents(parts[3]);
+        int sweep    = parts.length == 5 ? Integer.parseInt(parts[4]) : 0;
+        User u = new User(accNum, name, pass);
+        putUser(u, bal, sweep);
+        return u;
+    }
+
+    // User → snapshot line; the sweep column only appears once it's been set
+    private static String snapshotLine(AccountTable users, User u) {
+        String line = u.accountNumber + "," + u.name + "," + u.password + ","
+                    + formatCents(users.balance(u));
+        int sweep = users.lastSweep(u);
+        return sweep == 0 ? line : line + "," + sweep;
+    }
+
+    // Adds (or replaces) a User in both maps
+    private void putUser(User u, long balance, int lastSweep) {
+        User old = usersByAccount.put(u, balance, lastSweep);
+        if (old != null) {
+            usersByName.remove(old.name);
+        }
+        usersByName.put(u.name, u);
+
+        // Keep nextAccountNumber strictly greater
+        nextAccountNumber.accumulateAndGet(u.accountNumber + 1, Math::max);
     }
 
     // ────────────────────────────────────────────────────────────────────────────
-    // 6) saveUsers() → Overwrites the file with current in-memory state
+    // 5b) replayJournal() → Applies every record written since the last snapshot
     // ────────────────────────────────────────────────────────────────────────────
+    //   C,acc,name,pass,balance   → account created
+    //   B,acc,balance             → account's balance is now <balance>
+    //   T,from,fromBal,to,toBal   → transfer; both balances in one record
+    //   S,acc,balance,jobId       → sweep job <jobId> has been applied to acc
+    //
+    // Records carry the absolute balance rather than the delta, so replaying a
+    // record that is already part of the snapshot (crash between the snapshot
+    // rename and the journal truncate) is harmless.
 
-    private void saveUsers() {
-        try (BufferedWriter writer = Files.newBufferedWriter(DB_PATH)) {
-            for (User u : usersByAccount.values()) {
-                // Write each User as: account,name,password,balance
-                writer.write(u.accountNumber + ","
-                           + u.name + ","
-                           + u.password + ","
-                           + u.balance);
-                writer.newLine();
+    private void replayJournal() {
+        if (!Files.exists(JOURNAL_PATH)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(JOURNAL_PATH)) {
+            boolean tornTail = lastByte(JOURNAL_PATH) != '\n';
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if (next == null && tornTail) {
+                    // Cut short mid-append (a crash, or a failed write):
+                    // it may even parse, with digits missing
+                    System.out.println("Ignoring partial journal record: " + line);
+                    break;
+                }
+                if (!applyJournalRecord(line)) {
+                    System.out.println("Ignoring damaged journal record: " + line);
+                    break;
+                }
+                journalRecords++;
+                line = next;
             }
         } catch (IOException e) {
-            System.out.println("Error saving users: " + e.getMessage());
+            System.out.println("Error replaying journal: " + e.getMessage());
+        }
+    }
+
+    private boolean applyJournalRecord(String line) {
+        String[] parts = line.split(",");
+        try {
+            if (parts.length == 5 && parts[0].equals("C")) {
+                putUser(new User(Integer.parseInt(parts[1]), parts[2], parts[3]),
+                        parseCents(parts[4]), 0);
+                return true;
+            }
+            if (parts.length == 3 && parts[0].equals("B")) {
+                User u = findByAccount(Integer.parseInt(parts[1]));
+                if (u != null) {
+                    usersByAccount.setBalance(u, parseCents(parts[2]));
+                }
+                return true;
+            }
+            if (parts.length == 4 && parts[0].equals("S")) {
+                User u = findByAccount(Integer.parseInt(parts[1]));
+                if (u != null) {
+                    usersByAccount.setBalance(u, parseCents(parts[2]));
+                    usersByAccount.setLastSweep(u, Integer.parseInt(parts[3]));
+                }
+                return true;
+            }
+            if (parts.length == 5 && parts[0].equals("T")) {
+                User from = findByAccount(Integer.parseInt(parts[1]));
+                User to   = findByAccount(Integer.parseInt(parts[3]));
+                if (from != null) usersByAccount.setBalance(from, parseCents(parts[2]));
+                if (to != null)   usersByAccount.setBalance(to,   parseCents(parts[4]));
+                return true;
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Falls through to "damaged"
         }
+        return false;
     }
 
     // ────────────────────────────────────────────────────────────────────────────
-    // 7) createAccount() → Prompts user, builds new User, persists it
+    // 5c) Journal append → One small record per change, O(1) in account count
     // ────────────────────────────────────────────────────────────────────────────
+    //   Each log*() call queues its record and returns a ticket; the caller
+    //   passes that ticket to awaitDurable() before telling the customer the
+    //   change went through.
 
-    private void createAccount(Scanner input) {
-        System.out.print("Enter your name: ");
-        String name = input.nextLine().trim();
+    private void openJournal() {
+        try {
+            journal = new GroupCommitJournal(openJournalChannel());
+        } catch (IOException e) {
+            System.out.println("Error opening journal: " + e.getMessage());
+        }
+    }
 
-        // Prevent duplicate usernames or blank names
-        while (name.isEmpty() || usersByName.containsKey(name)) {
-            if (name.isEmpty()) {
-                System.out.print("Name cannot be blank. Enter your name: ");
-            } else {
-                System.out.print("That name is taken. Enter a different name: ");
+    // Readable too, so compaction can copy its tail; positioned at the end,
+    // and only the flusher writes, so every write still appends. A partial
+    // last record (which replay skipped) is cut off first, or the next
+    // record would be glued onto it.
+    private static FileChannel openJournalChannel() throws IOException {
+        FileChannel channel = FileChannel.open(JOURNAL_PATH, StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long end = channel.size();
+        ByteBuffer buf = ByteBuffer.allocate(256);
+        while (end > 0) {
+            buf.clear().limit((int) Math.min(buf.capacity(), end));
+            channel.read(buf, end - buf.limit());
+            int i = buf.limit() - 1;
+            while (i >= 0 && buf.get(i) != '\n') i--;
+            if (i >= 0) {
+                end -= buf.limit() - 1 - i;
+                break;
             }
-            name = input.nextLine().trim();
+            end -= buf.limit();
+        }
+        if (end < channel.size()) {
+            channel.truncate(end);
+            channel.force(false);
         }
+        return channel.position(end);
+    }
 
-        System.out.print("Create a password: ");
-        String pass = input.nextLine().trim();
+    // -1 for an empty or missing file
+    private static int lastByte(Path path) throws IOException {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (ch.size() == 0) {
+                return -1;
+            }
+            ByteBuffer one = ByteBuffer.allocate(1);
+            ch.read(one, ch.size() - 1);
+            return one.get(0);
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) journal.close();
+        journal = null;
+    }
+
+    private long logCreate(User u) {
+        if (mapped != null) {
+            // Whole record, written in place
+            if (!mapped.put(u, usersByAccount.balance(u), usersByAccount.lastSweep(u))) {
+                System.out.println("Warning: name or password too long for "
+                                 + MAPPED_PATH + "; account kept in memory only.");
+            }
+            return 0;
+        }
+        return appendJournal("C," + u.accountNumber + "," + u.name + ","
+                           + u.password + "," + formatCents(usersByAccount.balance(u)));
+    }
+
+    private long logBalance(User u) {
+        if (mapped != null) {
+            mapped.putBalance(u.accountNumber, usersByAccount.balance(u));   // 8-byte in-place write
+            return 0;
+        }
+        return appendJournal("B," + u.accountNumber + "," + formatCents(usersByAccount.balance(u)));
+    }
+
+    private long logSweep(User u) {
+        if (mapped != null) {
+            // Balance + job id, one record force
+            mapped.putSweep(u.accountNumber, usersByAccount.balance(u), usersByAccount.lastSweep(u));
+            return 0;
+        }
+        return appendJournal("S," + u.accountNumber + "," + formatCents(usersByAccount.balance(u))
+                           + "," + usersByAccount.lastSweep(u));
+    }
+
+    private long logTransfer(User from, User to) {
+        if (mapped != null) {
+            // Two in-place writes; unlike the journal's T record a crash
+            // between them can split the transfer
+            mapped.putBalance(from.accountNumber, usersByAccount.balance(from));
+            mapped.putBalance(to.accountNumber, usersByAccount.balance(to));
+            return 0;
+        }
+        // One record, so a crash can never keep half of a transfer
+        return appendJournal("T," + from.accountNumber + "," + formatCents(usersByAccount.balance(from)) + ","
+                           + to.accountNumber + "," + formatCents(usersByAccount.balance(to)));
+    }
 
-        // Assign next unique account number
-        int acc = nextAccountNumber++;
-        User u = new User(acc, name, pass, 0.0);
+    // Journal unavailable: a change takes a ticket from here instead, and
+    // awaitDurable() (called off the stripe locks) writes a full snapshot
+    // from frozenUsers() that covers it. One snapshot covers every ticket
+    // issued before it froze the accounts, so waiters share them.
+    private final AtomicLong unjournaled = new AtomicLong();
+    private long unjournaledSaved;   // Guarded by snapshotLock
 
-        // Store in both maps
-        usersByAccount.put(acc, u);
-        usersByName.put(name, u);
+    private long appendJournal(String record) {
+        if (journal == null) {
+            return unjournaled.incrementAndGet();
+        }
+        return journal.append(record);
+    }
 
-        saveUsers();  // Persist immediately
+    // Blocks until the record behind ticket is on disk (a journal that
+    // can't write stops the process instead; see GroupCommitJournal)
+    private void awaitDurable(long ticket) {
+        if (journal != null) {
+            journal.awaitDurable(ticket);
+        } else if (!saveThrough(ticket)) {
+            System.out.println("Warning: the last change could not be saved to disk.");
+        }
+    }
 
-        System.out.println("Account created! Your account number: " + acc);
+    private boolean saveThrough(long ticket) {
+        synchronized (snapshotLock) {
+            if (unjournaledSaved >= ticket) {
+                return true;   // Ticket 0, or a snapshot since already has it
+            }
+            // Tickets are taken under a stripe lock once the change is made,
+            // so every one issued by now is in the frozen copy
+            long covers = unjournaled.get();
+            if (!writeSnapshot(frozenUsers())) {
+                return false;
+            }
+            unjournaledSaved = covers;
+            return true;
+        }
     }
 
     // ────────────────────────────────────────────────────────────────────────────
-    // 8) accessAccount() → Login flow and sub-menu for account ops
+    // 5d) compact() → Folds the journal into a fresh snapshot
     // ────────────────────────────────────────────────────────────────────────────
+    //   Only called with the journal closed (exit); while running, the
+    //   journal compacts through GroupCommitJournal.startCompaction().
 
-    private void accessAccount(Scanner input) {
-        System.out.print("Enter your name: ");
-        String name = input.nextLine().trim();
-        System.out.print("Enter your password: ");
-        String pass = input.nextLine().trim();
+    private void compact() {
+        if (!saveUsers(frozenUsers())) {
+            return;   // Old snapshot + journal are still intact; try again later
+        }
+        try {
+            // Snapshot now covers every record → start an empty journal
+            Files.newBufferedWriter(JOURNAL_PATH).close();
+        } catch (IOException e) {
+            System.out.println("Error truncating journal: " + e.getMessage());
+        }
+    }
 
-        User current = usersByName.get(name);  // O(1) lookup by name
-        if (current == null || !current.password.equals(pass)) {
-            System.out.println("Login failed. Check your credentials.");
-            return;  // Back to main menu
+    // ────────────────────────────────────────────────────────────────────────────
+    // 5e) GroupCommitJournal → Many sessions' records, one force() per batch
+    // ────────────────────────────────────────────────────────────────────────────
+    //   Sessions only add to `pending`; a single flusher thread owns the file.
+    //   It waits up to BATCH_WINDOW_MS (or until BATCH_SIZE records queue up),
+    //   writes the whole batch, forces it once, and then wakes every session
+    //   whose ticket the batch covered. Throughput is then bounded by records
+    //   per sync, not syncs per second.
+    //
+    //   Compaction writes the snapshot on a thread of its own, so batches keep
+    //   being acknowledged meanwhile. The snapshot covers everything written
+    //   before it started; once it is durable the flusher drops that prefix
+    //   of the journal and keeps the records written since.
+    //
+    //   A failed write or force is fatal: the flusher reports it and halts the
+    //   process at once. Marking just that batch failed and carrying on isn't
+    //   safe: after a failed fsync the kernel may already have dropped the
+    //   pages, so a later successful force proves nothing about them, and the
+    //   balances the batch held are still in memory, where the next record
+    //   for each account would make them durable after their sessions were
+    //   told they failed. Every batch acknowledged before the failure is on
+    //   disk and replays on restart; sessions waiting on the failed one never
+    //   hear back. halt() skips the shutdown hooks, whose snapshot would
+    //   write those unacknowledged balances out.
+
+    private class GroupCommitJournal implements Runnable {
+        private static final long NO_SNAPSHOT = Long.MIN_VALUE;
+
+        private FileChannel channel;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition hasWork = lock.newCondition();   // Signalled by append()
+        private final Condition flushed = lock.newCondition();   // Signalled per batch
+
+        private List<String> pending = new ArrayList<>();  // Queued, not yet written
+        private long appendedSeq = 0;      // Ticket of the newest queued record
+        private long durableSeq  = 0;      // Every ticket ≤ this is on disk
+        private boolean closing  = false;
+        private int sinceSnapshot = journalRecords;  // Records since last snapshot
+        private long written;              // Journal bytes on disk (flusher only)
+        private boolean compacting = false;   // A snapshot is being written (flusher only)
+        private long snapshotCovers = NO_SNAPSHOT;   // Set when it finishes; -1 if it failed
+
+        private final Thread flusher = new Thread(this, "bank-journal-flusher");
+
+        GroupCommitJournal(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.written = channel.size();
+            flusher.setDaemon(true);
+            flusher.start();
         }
 
-        System.out.println("Login successful! Account #: " + current.accountNumber);
+        long append(String record) {
+            lock.lock();
+            try {
+                pending.add(record);
+                if (pending.size() == 1 || pending.size() >= BATCH_SIZE) {
+                    hasWork.signal();   // Start a window, or cut it short
+                }
+                return ++appendedSeq;
+            } finally {
+                lock.unlock();
+            }
+        }
 
-        String opt;
-        do {
-            // Sub-menu display
-            System.out.println("\n1) View Balance   2) Deposit   3) Withdraw   4) Logout");
-            System.out.print("Choose an option: ");
-            opt = input.nextLine().trim();
+        void awaitDurable(long ticket) {
+            lock.lock();
+            try {
+                while (durableSeq < ticket) {
+                    flushed.awaitUninterruptibly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
 
-            switch (opt) {
-                case "1":
-                    System.out.println("Balance: $" + current.balance);
-                    break;
+        // Flushes whatever is queued, then stops the flusher thread
+        void close() {
+            lock.lock();
+            try {
+                closing = true;
+                hasWork.signal();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                flusher.join();
+                channel.close();
+            } catch (InterruptedException | IOException e) {
+                System.out.println("Error closing journal: " + e.getMessage());
+            }
+        }
 
-                case "2":
-                    System.out.print("Amount to deposit: ");
-                    double dep = readDouble(input);
-                    current.balance += dep;  // Update in memory
-                    saveUsers();            // Persist change
-                    System.out.println("Deposited. New balance: $" + current.balance);
-                    break;
+        @Override
+        public void run() {
+            while (true) {
+                List<String> batch;
+                long lastTicket;
+                long covers;
 
-                case "3":
-                    System.out.print("Amount to withdraw: ");
-                    double w = readDouble(input);
-                    if (w <= current.balance) {
-                        current.balance -= w;
-                        saveUsers();        // Persist change
-                        System.out.println("Withdrawn. New balance: $" + current.balance);
-                    } else {
-                        System.out.println("Insufficient funds.");
+                lock.lock();
+                try {
+                    // Closing also waits for a running snapshot to finish
+                    while (pending.isEmpty() && snapshotCovers == NO_SNAPSHOT && (!closing || compacting)) {
+                        hasWork.awaitUninterruptibly();
                     }
-                    break;
+                    covers = snapshotCovers;
+                    snapshotCovers = NO_SNAPSHOT;
+                    if (pending.isEmpty() && covers == NO_SNAPSHOT) {
+                        return;   // Closing and fully drained
+                    }
+                } finally {
+                    lock.unlock();
+                }
 
-                case "4":
-                    System.out.println("Logging out.");
-                    break;
+                if (covers != NO_SNAPSHOT) {
+                    finishCompaction(covers);
+                }
 
-                default:
-                    System.out.println("Invalid option.");
+                lock.lock();
+                try {
+                    if (pending.isEmpty()) {
+                        continue;
+                    }
+
+                    // Give other sessions the rest of the window to join in
+                    long deadline = System.nanoTime() + BATCH_WINDOW_MS * 1_000_000L;
+                    long left;
+                    while (pending.size() < BATCH_SIZE && !closing
+                            && (left = deadline - System.nanoTime()) > 0) {
+                        try {
+                            hasWork.awaitNanos(left);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+
+                    int n = Math.min(pending.size(), BATCH_SIZE);
+                    batch = new ArrayList<>(pending.subList(0, n));
+                    pending = new ArrayList<>(pending.subList(n, pending.size()));
+                    lastTicket = appendedSeq - pending.size();
+                } finally {
+                    lock.unlock();
+                }
+
+                long batchStart = written;
+                try {
+                    writeAndForce(batch);
+                } catch (IOException e) {
+                    try {
+                        channel.truncate(batchStart);   // Best effort: none of it was acknowledged
+                        channel.force(false);
+                    } catch (IOException ignored) {
+                        // Replay still skips a partial last record
+                    }
+                    System.out.println("FATAL: journal write failed after ticket " + durableSeq + " ("
+                                     + batch.size() + " records unsaved): " + e.getMessage()
+                                     + ". Stopping; restart once " + JOURNAL_PATH + " is writable.");
+                    System.out.flush();
+                    Runtime.getRuntime().halt(70);
+                }
+
+                lock.lock();
+                try {
+                    durableSeq = lastTicket;
+                    flushed.signalAll();   // Acknowledge the whole batch at once
+                } finally {
+                    lock.unlock();
+                }
+
+                sinceSnapshot += batch.size();
+                if (!compacting && sinceSnapshot >= Math.max(COMPACT_EVERY, usersByAccount.size())) {
+                    startCompaction();
+                }
             }
-        } while (!opt.equals("4"));
-    }
+        }
 
-    // ────────────────────────────────────────────────────────────────────────────
-    // 9) Helper to safely parse a double from input
-    // ────────────────────────────────────────────────────────────────────────────
+        private void writeAndForce(List<String> batch) throws IOException {
+            StringBuilder sb = new StringBuilder(batch.size() * 32);
+            for (String record : batch) {
+                sb.append(record).append('\n');
+            }
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                written += channel.write(buf);
+            }
+            channel.force(false);   // The one sync for the whole batch
+        }
 
-    private double readDouble(Scanner input) {
-        while (true) {
+        // Every record before `from` was queued before the snapshot froze
+        // the balances, so it covers them. Records after it may or may not be
+        // in the snapshot too; they carry absolute balances, so replaying
+        // them on top is harmless either way.
+        private void startCompaction() {
+            long from = written;
+            compacting = true;
+            sinceSnapshot = 0;
+            Thread writer = new Thread(() -> {
+                boolean ok = saveUsers(frozenUsers());
+                lock.lock();
+                try {
+                    snapshotCovers = ok ? from : -1;
+                    hasWork.signal();
+                } finally {
+                    lock.unlock();
+                }
+            }, "bank-snapshot");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // On the flusher thread, so nothing else touches the channel. Copies
+        // the records written since the snapshot began into a new journal;
+        // a crash before the rename leaves the whole old one, which replays
+        // onto the new snapshot just as well.
+        private void finishCompaction(long covers) {
+            compacting = false;
+            if (covers < 0) {
+                return;   // Old snapshot + journal are still intact
+            }
             try {
-                String line = input.nextLine().trim();
-                return Double.parseDouble(line);
-            } catch (NumberFormatException e) {
-                System.out.print("Please enter a valid number: ");
+                try (FileChannel out = FileChannel.open(JOURNAL_TMP_PATH, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    for (long at = covers; at < written; ) {
+                        at += channel.transferTo(at, written - at, out);
+                    }
+                    out.force(false);
+                }
+                Files.move(JOURNAL_TMP_PATH, JOURNAL_PATH,
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                channel.close();
+                channel = openJournalChannel();
+                written = channel.size();
+            } catch (IOException e) {
+                System.out.println("Error truncating journal: " + e.getMessage());
             }
         }
     }
 
     // ────────────────────────────────────────────────────────────────────────────
-    // 10) User class → holds one account’s data in memory
+    // 5f) MappedAccountStore → Fixed-width binary records in data/users.dat
     // ────────────────────────────────────────────────────────────────────────────
+    //   Record for account N lives at HEADER + (N - FIRST_ACCOUNT) * RECORD_SIZE:
+    //
+    //     0   int     accountNumber   (0 = slot never used)
+    //     4   long    balance in cents
+    //     12  short   name length,     14  name bytes     (≤ 56, UTF-8)
+    //     70  short   password length, 72  password bytes (≤ 48, UTF-8)
+    //     120 int     last sweep job applied (0 = none)
+    //
+    //   A balance change is an 8-byte put + force of that one record; a lookup
+    //   is a handful of absolute reads with no text parsing. The file is mapped
+    //   in CHUNK_RECORDS-sized pieces so it can grow past 2 GB.
 
-    private static class User {
-        int    accountNumber;
-        String name;
-        String password;
-        double balance;
+    private static class MappedAccountStore {
+        private static final int MAGIC         = 0x424E4B32;  // "BNK2" (cents; BNK1 held doubles)
+        private static final int HEADER        = 64;
+        private static final int RECORD_SIZE   = 128;
+        private static final int FIRST_ACCOUNT = 1001;
+        private static final int CHUNK_RECORDS = 1 << 20;     // 128 MB per mapping
 
-        User(int accountNumber, String name, String password, double balance) {
-            this.accountNumber = accountNumber;
-            this.name          = name;
-            this.password      = password;
-            this.balance       = balance;
+        private static final int OFF_BALANCE  = 4;
+        private static final int OFF_NAME     = 12;
+        private static final int OFF_PASSWORD = 70;
+        private static final int MAX_NAME     = 56;
+        private static final int MAX_PASSWORD = 48;
+        private static final int OFF_SWEEP    = 120;
+
+        private final FileChannel channel;
+        private final MappedByteBuffer header;
+        private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+
+        MappedAccountStore(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+            if (header.getInt(0) == 0) {
+                header.putInt(0, MAGIC);
+                header.putInt(4, RECORD_SIZE);
+                header.putInt(8, FIRST_ACCOUNT);
+                header.force();
+            } else if (header.getInt(0) != MAGIC || header.getInt(4) != RECORD_SIZE) {
+                throw new IOException("not a current Bank account store; re-run `java Bank migrate`");
+            }
+        }
+
+        // Registers every stored account with the bank's maps
+        void loadInto(Bank bank) {
+            int chunkCount = (int) ((dataLength() + chunkBytes() - 1) / chunkBytes());
+            for (int c = 0; c < chunkCount; c++) {
+                MappedByteBuffer chunk = chunk(c);
+                for (int r = 0; r < CHUNK_RECORDS; r++) {
+                    int base = r * RECORD_SIZE;
+                    int acc = chunk.getInt(base);
+                    if (acc != 0) {
+                        User u = new User(acc,
+                                readString(chunk, base + OFF_NAME),
+                                readString(chunk, base + OFF_PASSWORD));
+                        bank.putUser(u, chunk.getLong(base + OFF_BALANCE), chunk.getInt(base + OFF_SWEEP));
+                    }
+                }
+            }
+        }
+
+        // Writes u's whole record and forces it; false if its strings don't fit
+        boolean put(User u, long balance, int lastSweep) {
+            if (!write(u, balance, lastSweep)) {
+                return false;
+            }
+            chunkFor(u.accountNumber).force(offsetInChunk(u.accountNumber), RECORD_SIZE);
+            return true;
+        }
+
+        // Same as put() minus the force; for bulk loads that force once in close()
+        boolean write(User u, long balance, int lastSweep) {
+            byte[] name = u.name.getBytes(StandardCharsets.UTF_8);
+            byte[] pass = u.password.getBytes(StandardCharsets.UTF_8);
+            if (name.length > MAX_NAME || pass.length > MAX_PASSWORD) {
+                return false;
+            }
+            MappedByteBuffer chunk = chunkFor(u.accountNumber);
+            int base = offsetInChunk(u.accountNumber);
+            chunk.putLong(base + OFF_BALANCE, balance);
+            chunk.putShort(base + OFF_NAME, (short) name.length);
+            chunk.put(base + OFF_NAME + 2, name);
+            chunk.putShort(base + OFF_PASSWORD, (short) pass.length);
+            chunk.put(base + OFF_PASSWORD + 2, pass);
+            chunk.putInt(base + OFF_SWEEP, lastSweep);
+            chunk.putInt(base, u.accountNumber);   // Marks the slot used, last
+            return true;
+        }
+
+        void putBalance(int accountNumber, long balance) {
+            MappedByteBuffer chunk = chunkFor(accountNumber);
+            int base = offsetInChunk(accountNumber);
+            chunk.putLong(base + OFF_BALANCE, balance);
+            chunk.force(base + OFF_BALANCE, 8);
+        }
+
+        void putSweep(int accountNumber, long balance, int lastSweep) {
+            MappedByteBuffer chunk = chunkFor(accountNumber);
+            int base = offsetInChunk(accountNumber);
+            chunk.putLong(base + OFF_BALANCE, balance);
+            chunk.putInt(base + OFF_SWEEP, lastSweep);
+            chunk.force(base, RECORD_SIZE);
+        }
+
+        void close() {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing account store: " + e.getMessage());
+            }
+        }
+
+        private static long chunkBytes() {
+            return (long) CHUNK_RECORDS * RECORD_SIZE;
+        }
+
+        private long dataLength() {
+            try {
+                return Math.max(0, channel.size() - HEADER);
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        private static long slot(int accountNumber) {
+            if (accountNumber < FIRST_ACCOUNT) {
+                throw new IllegalArgumentException("account " + accountNumber);
+            }
+            return accountNumber - (long) FIRST_ACCOUNT;
+        }
+
+        private static int offsetInChunk(int accountNumber) {
+            return (int) (slot(accountNumber) % CHUNK_RECORDS) * RECORD_SIZE;
+        }
+
+        private MappedByteBuffer chunkFor(int accountNumber) {
+            return chunk((int) (slot(accountNumber) / CHUNK_RECORDS));
+        }
+
+        // Maps chunk c on first use, growing the file if needed
+        private MappedByteBuffer chunk(int c) {
+            MappedByteBuffer[] current = chunks;
+            if (c < current.length && current[c] != null) {
+                return current[c];
+            }
+            synchronized (this) {
+                MappedByteBuffer[] grown = Arrays.copyOf(chunks, Math.max(chunks.length, c + 1));
+                if (grown[c] == null) {
+                    try {
+                        // Sparse on most file systems: untouched slots cost no disk
+                        grown[c] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                HEADER + c * chunkBytes(), chunkBytes());
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                chunks = grown;   // Publish the new array for lock-free readers
+                return grown[c];
+            }
+        }
+
+        private static String readString(MappedByteBuffer chunk, int at) {
+            byte[] bytes = new byte[chunk.getShort(at)];
+            chunk.get(at + 2, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 5g) SnapshotIndex → Lazy startup over users.txt via data/users.idx
+    // ────────────────────────────────────────────────────────────────────────────
+    //   users.idx (mapped read-only, never parsed into objects):
+    //
+    //     0   int  magic "BIX1"        16  long users.txt size
+    //     4   int  account count       24  long users.txt last-modified
+    //     8   int  highest account     64  count × (int account, long offset),
+    //     12  int  name slots              sorted by account → binary search
+    //                                  ..  slots × (long nameHash, int account),
+    //                                      open addressing, hash 0 = empty
+    //
+    //   Startup maps the index (building it once if users.txt changed behind
+    //   its back) and stops there. A User is read from its line in users.txt
+    //   the first time someone touches it and cached in the usual maps.
+    //   Compaction streams the old snapshot into the new one, swapping in the
+    //   cached Users, and emits the matching index as it goes.
+
+    private class SnapshotIndex {
+        private static final int MAGIC  = 0x42495831;  // "BIX1"
+        private static final int HEADER = 64;
+        private static final int ENTRY  = 12;          // Both sections: int + long
+
+        private final ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+        private final Object adoptLock = new Object(); // One User object per account
+
+        private FileChannel snapshot;    // Read handle on users.txt
+        private MappedByteBuffer index;  // Mapped users.idx
+        private int count;
+        private int nameSlots;
+
+        static SnapshotIndex openOrBuild(Bank bank) throws IOException {
+            SnapshotIndex idx = bank.new SnapshotIndex();
+            if (!idx.map()) {
+                System.out.println("Building " + INDEX_PATH + " ...");
+                try (IndexBuilder builder = new IndexBuilder()) {
+                    scanSnapshot(DB_PATH, (offset, line, len) -> {
+                        int acc = parseAccount(line, len);
+                        if (acc > 0) builder.add(acc, offset, hashName(line, len));
+                    });
+                    builder.writeIndex();
+                }
+                if (!idx.map()) {
+                    throw new IOException("index does not match " + DB_PATH);
+                }
+            }
+            return idx;
+        }
+
+        // Maps users.idx if it exists and describes the current users.txt
+        private boolean map() throws IOException {
+            if (!Files.exists(INDEX_PATH)) {
+                return false;
+            }
+            MappedByteBuffer mapped;
+            try (FileChannel ch = FileChannel.open(INDEX_PATH, StandardOpenOption.READ)) {
+                if (ch.size() < HEADER) return false;
+                mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            if (mapped.getInt(0) != MAGIC
+                    || mapped.getLong(16) != Files.size(DB_PATH)
+                    || mapped.getLong(24) != Files.getLastModifiedTime(DB_PATH).toMillis()) {
+                return false;   // Stale: users.txt was rewritten without us
+            }
+
+            FileChannel reader = FileChannel.open(DB_PATH, StandardOpenOption.READ);
+            swap.writeLock().lock();
+            try {
+                if (snapshot != null) snapshot.close();
+                snapshot  = reader;
+                index     = mapped;
+                count     = mapped.getInt(4);
+                nameSlots = mapped.getInt(12);
+            } finally {
+                swap.writeLock().unlock();
+            }
+            nextAccountNumber.accumulateAndGet(mapped.getInt(8) + 1, Math::max);
+            return true;
+        }
+
+        User loadByAccount(int accountNumber) {
+            User cached = usersByAccount.get(accountNumber);
+            if (cached != null) {
+                return cached;
+            }
+            String line;
+            swap.readLock().lock();
+            try {
+                long offset = offsetOf(accountNumber);
+                if (offset < 0) {
+                    return null;
+                }
+                line = readLine(offset);
+            } catch (IOException e) {
+                System.out.println("Error reading account " + accountNumber + ": " + e.getMessage());
+                return null;
+            } finally {
+                swap.readLock().unlock();
+            }
+            synchronized (adoptLock) {
+                // Another session may have read the same line meanwhile
+                User winner = usersByAccount.get(accountNumber);
+                return winner != null ? winner : putParsedUser(line);
+            }
+        }
+
+        User loadByName(String name) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            long hash = hashName(bytes, 0, bytes.length);
+            List<Integer> candidates = new ArrayList<>(1);
+
+            swap.readLock().lock();
+            try {
+                int base = HEADER + count * ENTRY;
+                int mask = nameSlots - 1;
+                for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+                    long slotHash = index.getLong(base + i * ENTRY);
+                    if (slotHash == 0) break;
+                    if (slotHash == hash) candidates.add(index.getInt(base + i * ENTRY + 8));
+                }
+            } finally {
+                swap.readLock().unlock();
+            }
+
+            for (int acc : candidates) {   // Usually exactly one
+                User u = loadByAccount(acc);
+                if (u != null && u.name.equals(name)) {
+                    return u;
+                }
+            }
+            return null;
+        }
+
+        // Writes users.txt from the old snapshot plus every cached User, and
+        // users.idx to match; the old files stay in place until each rename
+        boolean saveMerged(AccountTable users) {
+            try (IndexBuilder builder = new IndexBuilder();
+                 CountingOutput out = new CountingOutput(SNAPSHOT_TMP_PATH)) {
+
+                swap.readLock().lock();
+                try {
+                    scanSnapshot(DB_PATH, (offset, line, len) -> {
+                        int acc = parseAccount(line, len);
+                        if (acc <= 0) return;
+                        User u = users.get(acc);
+                        if (u == null) {
+                            builder.add(acc, out.position(), hashName(line, len));
+                            out.write(line, len);       // Untouched: copy as-is
+                        } else {
+                            writeUser(users, u, builder, out);  // Cached: may have changed
+                        }
+                    });
+                    // Accounts opened since the last snapshot
+                    users.forEach(u -> {
+                        if (offsetOf(u.accountNumber) < 0) {
+                            writeUser(users, u, builder, out);
+                        }
+                    });
+                } finally {
+                    swap.readLock().unlock();
+                }
+
+                out.forceAndClose();
+                Files.move(SNAPSHOT_TMP_PATH, DB_PATH,
+                           StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+                builder.writeIndex();
+                return map();
+            } catch (IOException | UncheckedIOException e) {
+                System.out.println("Error saving users: " + e.getMessage());
+                return false;
+            }
+        }
+
+        private void writeUser(AccountTable users, User u, IndexBuilder builder, CountingOutput out) {
+            byte[] line = snapshotLine(users, u).getBytes(StandardCharsets.UTF_8);
+            builder.add(u.accountNumber, out.position(), hashName(line, line.length));
+            out.write(line, line.length);
+        }
+
+        // Binary search of the account section; -1 if not in the snapshot
+        private long offsetOf(int accountNumber) {
+            int lo = 0, hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int acc = index.getInt(HEADER + mid * ENTRY);
+                if (acc < accountNumber)      lo = mid + 1;
+                else if (acc > accountNumber) hi = mid - 1;
+                else return index.getLong(HEADER + mid * ENTRY + 4);
+            }
+            return -1;
+        }
+
+        private String readLine(long offset) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocate(256);
+            while (true) {
+                int n = snapshot.read(buf, offset + buf.position());
+                byte[] bytes = buf.array();
+                for (int i = 0; i < buf.position(); i++) {
+                    if (bytes[i] == '\n') {
+                        return new String(bytes, 0, i, StandardCharsets.UTF_8);
+                    }
+                }
+                if (n < 0) {
+                    return new String(bytes, 0, buf.position(), StandardCharsets.UTF_8);
+                }
+                if (!buf.hasRemaining()) {   // Unusually long line
+                    buf = ByteBuffer.allocate(buf.capacity() * 2).put(buf.flip());
+                }
+            }
+        }
+    }
+
+    // Called once per snapshot line with its byte offset; `line` excludes '\n'
+    private interface LineVisitor {
+        void visit(long offset, byte[] line, int len);
+    }
+
+    private static void scanSnapshot(Path path, LineVisitor visitor) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            byte[] chunk = new byte[1 << 16];
+            byte[] line = new byte[256];
+            int len = 0;
+            long pos = 0, lineStart = 0;
+            int n;
+            while ((n = in.read(chunk)) > 0) {
+                for (int i = 0; i < n; i++, pos++) {
+                    if (chunk[i] == '\n') {
+                        visitor.visit(lineStart, line, len);
+                        len = 0;
+                        lineStart = pos + 1;
+                    } else {
+                        if (len == line.length) line = Arrays.copyOf(line, len * 2);
+                        line[len++] = chunk[i];
+                    }
+                }
+            }
+            if (len > 0) visitor.visit(lineStart, line, len);
+        }
+    }
+
+    // Account number of a snapshot line, or -1 unless it has 4 or 5 fields
+    private static int parseAccount(byte[] line, int len) {
+        int commas = 0, acc = 0;
+        for (int i = 0; i < len; i++) {
+            if (line[i] == ',') commas++;
+            else if (commas == 0) {
+                if (line[i] < '0' || line[i] > '9') return -1;
+                acc = acc * 10 + (line[i] - '0');
+            }
+        }
+        return commas == 3 || commas == 4 ? acc : -1;
+    }
+
+    // FNV-1a of the name field (between the 1st and 2nd comma)
+    private static long hashName(byte[] line, int len) {
+        int start = 0;
+        while (start < len && line[start] != ',') start++;
+        int end = ++start;
+        while (end < len && line[end] != ',') end++;
+        return hashName(line, start, end);
+    }
+
+    private static long hashName(byte[] bytes, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;   // 0 marks an empty name slot
+    }
+
+    // Collects (account, offset, name hash) triples, then writes users.idx
+    private static class IndexBuilder implements AutoCloseable {
+        private int[]  accounts = new int[1024];
+        private long[] offsets  = new long[1024];
+        private long[] hashes   = new long[1024];
+        private int n;
+
+        void add(int account, long offset, long nameHash) {
+            if (n == accounts.length) {
+                accounts = Arrays.copyOf(accounts, n * 2);
+                offsets  = Arrays.copyOf(offsets,  n * 2);
+                hashes   = Arrays.copyOf(hashes,   n * 2);
+            }
+            accounts[n] = account;
+            offsets[n]  = offset;
+            hashes[n]   = nameHash;
+            n++;
+        }
+
+        // Call after users.txt is in its final place: its size and
+        // timestamp go into the header
+        void writeIndex() throws IOException {
+            // Sort by account without boxing: (account << 32 | position)
+            long[] order = new long[n];
+            int maxAccount = 0;
+            for (int i = 0; i < n; i++) {
+                order[i] = ((long) accounts[i] << 32) | i;
+                maxAccount = Math.max(maxAccount, accounts[i]);
+            }
+            Arrays.sort(order);
+
+            int slots = Integer.highestOneBit(Math.max(2, n) * 2 - 1) << 1;  // ≥ 2n, power of 2
+            long size = SnapshotIndex.HEADER + (long) (n + slots) * SnapshotIndex.ENTRY;
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("too many accounts for one index mapping");
+            }
+
+            Files.deleteIfExists(INDEX_TMP_PATH);
+            try (FileChannel ch = FileChannel.open(INDEX_TMP_PATH, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer out = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                out.putInt(0, SnapshotIndex.MAGIC);
+                out.putInt(4, n);
+                out.putInt(8, maxAccount);
+                out.putInt(12, slots);
+                out.putLong(16, Files.size(DB_PATH));
+                out.putLong(24, Files.getLastModifiedTime(DB_PATH).toMillis());
+
+                int at = SnapshotIndex.HEADER;
+                for (long key : order) {
+                    int i = (int) key;
+                    out.putInt(at, accounts[i]);
+                    out.putLong(at + 4, offsets[i]);
+                    at += SnapshotIndex.ENTRY;
+                }
+
+                int base = at;
+                for (int i = 0; i < n; i++) {
+                    int slot = (int) hashes[i] & (slots - 1);
+                    while (out.getLong(base + slot * SnapshotIndex.ENTRY) != 0) {
+                        slot = (slot + 1) & (slots - 1);
+                    }
+                    out.putLong(base + slot * SnapshotIndex.ENTRY, hashes[i]);
+                    out.putInt(base + slot * SnapshotIndex.ENTRY + 8, accounts[i]);
+                }
+                out.force();
+            }
+            Files.move(INDEX_TMP_PATH, INDEX_PATH,
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        @Override
+        public void close() {
+            accounts = null;   // Let the (large) arrays go right away
+            offsets  = null;
+            hashes   = null;
+        }
+    }
+
+    // Buffered file output that knows its own byte position
+    private static class CountingOutput implements AutoCloseable {
+        private final Path path;
+        private final OutputStream out;
+        private long position;
+        private boolean closed;
+
+        CountingOutput(Path path) throws IOException {
+            this.path = path;
+            this.out  = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+        }
+
+        long position() {
+            return position;
+        }
+
+        void write(byte[] line, int len) {
+            try {
+                out.write(line, 0, len);
+                out.write('\n');
+                position += len + 1;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        void forceAndClose() throws IOException {
+            out.close();
+            closed = true;
+            try (FileChannel ch = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ch.force(true);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) out.close();
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 5h) TransactionHistory → Append-only per-account statements
+    // ────────────────────────────────────────────────────────────────────────────
+    //   data/history/active.seg   today's records, fixed 40 bytes each:
+    //       long time, int account, int type, long amount, long balance,
+    //       long offset of the same account's previous record (-1 = none)
+    //   data/history/rolled-<n>.seg   full active segments, waiting to be sealed
+    //   data/history/seg-<first>-<last>.dat   sealed, compressed segments
+    //
+    //   Only the newest active offset per account is kept in memory. A query
+    //   on the active segment follows that account's back-pointers and stops
+    //   at the first record older than the range, so its cost tracks the
+    //   entries returned rather than the account's lifetime.
+    //
+    //   When the day changes (or the segment gets large) the active segment
+    //   is renamed to rolled-<n>.seg and a fresh one started; that is all the
+    //   recording session waits for. A background thread then seals the
+    //   rolled file: records are sorted by (account, time), deflated in blocks
+    //   of BLOCK_RECORDS, and written with a footer of (first account, last
+    //   account, offset, length) per block. Until then statements read the
+    //   rolled file through its back-pointers, like the active one. Sealed files are only mapped the
+    //   first time a statement reaches back into them; a query then binary
+    //   searches the footer and inflates just the blocks for its account.
+
+    private static class TransactionHistory {
+        private static final int RECORD         = 40;   // Active record
+        private static final int PACKED         = 32;   // Sealed record (no back-pointer)
+        private static final int BLOCK_RECORDS  = 256;
+        private static final int FOOTER_ENTRY   = 24;
+        private static final int TRAILER        = 16;
+        private static final int MAGIC          = 0x48495331;  // "HIS1"
+        private static final long SEAL_AFTER    =              // Records per segment, at most
+                Long.getLong("bank.historySegment", 1_000_000);
+        private static final long DAY_MILLIS    = 86_400_000L;
+
+        static final class Entry {
+            final long time;
+            final int  account;
+            final char type;      // D, W, I/O (transfer in/out), A (interest), F (fee)
+            final long amount;    // Cents
+            final long balance;   // Cents, after this entry
+
+            Entry(long time, int account, char type, long amount, long balance) {
+                this.time    = time;
+                this.account = account;
+                this.type    = type;
+                this.amount  = amount;
+                this.balance = balance;
+            }
+        }
+
+        private final Path dir;
+        private final ReentrantReadWriteLock sealLock = new ReentrantReadWriteLock();
+        private final ConcurrentSkipListMap<Long, Segment> sealed = new ConcurrentSkipListMap<>();
+
+        // Seals one rolled file at a time, oldest first, so `sealed` only
+        // ever holds records older than anything still in `rolled`
+        private final ExecutorService sealer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "bank-history-seal");
+            t.setDaemon(true);
+            return t;
+        });
+
+        // Swapped under sealLock's write lock
+        private volatile Generation active;
+        private final List<Generation> rolled = new ArrayList<>();  // Oldest first
+        private int nextRoll;
+
+        TransactionHistory(Path dir) throws IOException {
+            this.dir = dir;
+            Files.createDirectories(dir);
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "seg-*.dat")) {
+                for (Path file : files) {
+                    Segment seg = Segment.fromName(file);
+                    if (seg != null) sealed.put(seg.first, seg);
+                }
+            }
+
+            // Rolled before a crash or shutdown, not sealed yet
+            List<Path> leftover = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "rolled-*.seg")) {
+                for (Path file : files) {
+                    if (rollNumber(file) >= 0) leftover.add(file);
+                }
+            }
+            leftover.sort((a, b) -> Integer.compare(rollNumber(a), rollNumber(b)));
+            for (Path file : leftover) {
+                rolled.add(new Generation(file));
+                nextRoll = rollNumber(file) + 1;
+            }
+
+            active = new Generation(dir.resolve("active.seg"));
+            Segment done = sealed.get(active.first);
+            if (done != null && done.last == active.last) {
+                active.clear();   // Crashed after sealing, before truncating (older builds)
+            }
+            for (Generation g : rolled) {
+                sealer.execute(() -> seal(g));
+            }
+        }
+
+        private static int rollNumber(Path file) {
+            String name = file.getFileName().toString();
+            try {
+                return Integer.parseInt(name.substring("rolled-".length(), name.length() - ".seg".length()));
+            } catch (RuntimeException e) {
+                return -1;   // Not one of ours
+            }
+        }
+
+        void record(int account, char type, long amount, long balance) {
+            long now = System.currentTimeMillis();
+            if (active.rollNeeded(now)) {
+                roll(now);
+            }
+            sealLock.readLock().lock();
+            try {
+                Generation gen = active;
+                long offset, prev;
+                synchronized (gen) {
+                    if (gen.records == 0) gen.day = now / DAY_MILLIS;
+                    offset = gen.records++ * RECORD;
+                    prev = gen.newest.put(account, offset);
+                }
+                ByteBuffer buf = ByteBuffer.allocate(RECORD);
+                buf.putLong(now).putInt(account).putInt(type)
+                   .putLong(amount).putLong(balance).putLong(prev).flip();
+                while (buf.hasRemaining()) {
+                    gen.channel.write(buf, offset + buf.position());   // Positional: no shared cursor
+                }
+            } catch (IOException e) {
+                System.out.println("Error writing transaction history: " + e.getMessage());
+            } finally {
+                sealLock.readLock().unlock();
+            }
+        }
+
+        // Entries for account with from ≤ time ≤ to, oldest first
+        List<Entry> statement(int account, long from, long to) {
+            List<Entry> out = new ArrayList<>();
+            sealLock.readLock().lock();
+            try {
+                for (Segment seg : sealed.headMap(to, true).values()) {
+                    if (seg.last >= from) seg.collect(account, from, to, out);
+                }
+                for (Generation g : rolled) {
+                    g.collect(account, from, to, out);
+                }
+                active.collect(account, from, to, out);
+            } catch (IOException e) {
+                System.out.println("Error reading transaction history: " + e.getMessage());
+            } finally {
+                sealLock.readLock().unlock();
+            }
+            return out;
+        }
+
+        // Lets a running seal finish; anything still rolled is sealed on the next start
+        void close() {
+            sealer.shutdown();
+            try {
+                sealer.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            try {
+                active.channel.force(false);
+                active.channel.close();
+            } catch (IOException e) {
+                System.out.println("Error closing transaction history: " + e.getMessage());
+            }
+        }
+
+        static String describe(char type) {
+            switch (type) {
+                case 'D': return "Deposit";
+                case 'W': return "Withdrawal";
+                case 'I': return "Transfer in";
+                case 'O': return "Transfer out";
+                case 'A': return "Interest";
+                case 'F': return "Fee";
+                default:  return "?";
+            }
+        }
+
+        // Renames the full active file aside and starts an empty one. The
+        // write lock is held only for that; the session that crossed the
+        // boundary goes on to record its own entry in the new file.
+        private void roll(long now) {
+            sealLock.writeLock().lock();
+            try {
+                Generation full = active;
+                if (!full.rollNeeded(now)) {
+                    return;   // Another thread rolled first
+                }
+                Path to = dir.resolve("rolled-" + nextRoll++ + ".seg");
+                Files.move(full.path, to, StandardCopyOption.ATOMIC_MOVE);
+                full.path = to;
+                active = new Generation(dir.resolve("active.seg"));
+                rolled.add(full);
+                sealer.execute(() -> seal(full));
+            } catch (IOException e) {
+                System.out.println("Error rolling transaction history: " + e.getMessage());
+            } finally {
+                sealLock.writeLock().unlock();
+            }
+        }
+
+        // On the sealer thread: turns a rolled file into a sorted, compressed
+        // seg-*.dat file. Nothing writes to a rolled file, so only the swap
+        // from rolled to sealed needs the lock.
+        private void seal(Generation g) {
+            try {
+                int n = (int) g.records;
+                MappedByteBuffer src = g.channel.map(FileChannel.MapMode.READ_ONLY, 0, (long) n * RECORD);
+
+                // Sort by (account, position); position is already time order
+                long[] order = new long[n];
+                int live = 0;
+                long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+                for (int i = 0; i < n; i++) {
+                    long time = src.getLong(i * RECORD);
+                    if (time == 0) continue;
+                    order[live++] = ((long) src.getInt(i * RECORD + 8) << 32) | i;
+                    first = Math.min(first, time);
+                    last  = Math.max(last, time);
+                }
+                Arrays.sort(order, 0, live);
+
+                Segment seg = null;
+                Segment done = sealed.get(first);
+                if (live > 0 && (done == null || done.last != last)) {
+                    seg = writeSegment(src, order, live, first, last);
+                }
+
+                sealLock.writeLock().lock();
+                try {
+                    if (seg != null) sealed.put(seg.first, seg);
+                    rolled.remove(g);
+                } finally {
+                    sealLock.writeLock().unlock();
+                }
+                g.channel.close();
+                Files.delete(g.path);
+            } catch (IOException e) {
+                // Stays rolled (and readable); the next start tries again
+                System.out.println("Error sealing transaction history: " + e.getMessage());
+            }
+        }
+
+        private Segment writeSegment(MappedByteBuffer src, long[] order, int live,
+                                     long first, long last) throws IOException {
+            Path tmp = dir.resolve("seg.tmp");
+            Path target = dir.resolve("seg-" + first + "-" + last + ".dat");
+            int blocks = (live + BLOCK_RECORDS - 1) / BLOCK_RECORDS;
+            ByteBuffer footer = ByteBuffer.allocate(blocks * FOOTER_ENTRY + TRAILER);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                byte[] raw = new byte[BLOCK_RECORDS * PACKED];
+                byte[] packed = new byte[raw.length + 64];
+                long pos = 0;
+                for (int b = 0; b < blocks; b++) {
+                    int from = b * BLOCK_RECORDS, to = Math.min(live, from + BLOCK_RECORDS);
+                    ByteBuffer block = ByteBuffer.wrap(raw);
+                    for (int k = from; k < to; k++) {
+                        int at = (int) order[k] * RECORD;
+                        block.putLong(src.getLong(at)).putInt(src.getInt(at + 8))
+                             .putInt(src.getInt(at + 12)).putLong(src.getLong(at + 16))
+                             .putLong(src.getLong(at + 24));
+                    }
+                    deflater.reset();
+                    deflater.setInput(raw, 0, block.position());
+                    deflater.finish();
+                    int len = 0;
+                    while (!deflater.finished()) {
+                        if (len == packed.length) packed = Arrays.copyOf(packed, len * 2);
+                        len += deflater.deflate(packed, len, packed.length - len);
+                    }
+                    ByteBuffer w = ByteBuffer.wrap(packed, 0, len);
+                    while (w.hasRemaining()) out.write(w);
+
+                    footer.putInt((int) (order[from] >>> 32))     // First account in block
+                          .putInt((int) (order[to - 1] >>> 32))   // Last account in block
+                          .putLong(pos).putInt(len).putInt(to - from);
+                    pos += len;
+                }
+                footer.putInt(blocks).putLong(pos).putInt(MAGIC).flip();
+                while (footer.hasRemaining()) out.write(footer);
+                out.force(true);
+            } finally {
+                deflater.end();
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            return new Segment(target, first, last);
+        }
+
+        // One unsealed file of fixed-size records: active.seg, or a
+        // rolled-<n>.seg waiting for the sealer
+        private static class Generation {
+            Path path;                 // Changed only by roll(), under the write lock
+            final FileChannel channel;
+            long first = Long.MAX_VALUE, last = Long.MIN_VALUE;   // As found on open
+
+            // Guarded by `this`
+            final IntLongMap newest = new IntLongMap();  // account → newest offset
+            long records;
+            long day = -1;             // Epoch day of the first record
+
+            // Rebuilds the per-account offsets from what is already in the file
+            Generation(Path path) throws IOException {
+                this.path = path;
+                channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long n = channel.size() / RECORD;
+                ByteBuffer buf = ByteBuffer.allocate(RECORD);
+                for (long i = 0; i < n; i++) {
+                    buf.clear();
+                    channel.read(buf, i * RECORD);
+                    long time = buf.getLong(0);
+                    if (time == 0) continue;   // Reserved but never written (crash)
+                    newest.put(buf.getInt(8), i * RECORD);
+                    first = Math.min(first, time);
+                    last  = Math.max(last, time);
+                }
+                records = n;
+                if (first != Long.MAX_VALUE) day = first / DAY_MILLIS;
+            }
+
+            synchronized boolean rollNeeded(long now) {
+                return records > 0
+                    && (now / DAY_MILLIS != day || records >= SEAL_AFTER);
+            }
+
+            // Follows the account's back-pointers, newest first, and stops at
+            // the first record older than the range
+            void collect(int account, long from, long to, List<Entry> out) throws IOException {
+                List<Entry> recent = new ArrayList<>();
+                long offset;
+                synchronized (this) {
+                    offset = newest.get(account);
+                }
+                ByteBuffer buf = ByteBuffer.allocate(RECORD);
+                while (offset >= 0) {
+                    buf.clear();
+                    channel.read(buf, offset);
+                    long time = buf.getLong(0);
+                    if (time < from) break;   // Everything further back is older
+                    if (time <= to) {
+                        recent.add(new Entry(time, account, (char) buf.getInt(12),
+                                             buf.getLong(16), buf.getLong(24)));
+                    }
+                    offset = buf.getLong(32);
+                }
+                Collections.reverse(recent);
+                out.addAll(recent);
+            }
+
+            void clear() throws IOException {
+                channel.truncate(0);
+                channel.force(false);
+                synchronized (this) {
+                    newest.clear();
+                    records = 0;
+                    day = -1;
+                }
+            }
+        }
+
+        // One sealed file; mapped on first use, off-heap from then on
+        private static class Segment {
+            final Path path;
+            final long first, last;   // Time range covered
+            private MappedByteBuffer map;
+
+            Segment(Path path, long first, long last) {
+                this.path  = path;
+                this.first = first;
+                this.last  = last;
+            }
+
+            static Segment fromName(Path file) {
+                String[] parts = file.getFileName().toString().split("[-.]");
+                try {
+                    return new Segment(file, Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                } catch (RuntimeException e) {
+                    return null;   // Not one of ours
+                }
+            }
+
+            private synchronized MappedByteBuffer map() throws IOException {
+                if (map == null) {
+                    try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+                        map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                    }
+                    if (map.getInt(map.capacity() - 4) != MAGIC) {
+                        map = null;
+                        throw new IOException(path + " is damaged");
+                    }
+                }
+                return map;
+            }
+
+            void collect(int account, long from, long to, List<Entry> out) throws IOException {
+                MappedByteBuffer m = map();
+                int blocks = m.getInt(m.capacity() - TRAILER);
+                int footer = (int) m.getLong(m.capacity() - TRAILER + 4);
+
+                // First block whose last account is ≥ ours
+                int lo = 0, hi = blocks;
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (m.getInt(footer + mid * FOOTER_ENTRY + 4) < account) lo = mid + 1;
+                    else hi = mid;
+                }
+
+                Inflater inflater = new Inflater();
+                try {
+                    for (int b = lo; b < blocks; b++) {
+                        int e = footer + b * FOOTER_ENTRY;
+                        if (m.getInt(e) > account) break;   // Past our account
+                        byte[] packed = new byte[m.getInt(e + 16)];
+                        m.get((int) m.getLong(e + 8), packed);
+                        byte[] raw = new byte[m.getInt(e + 20) * PACKED];
+                        inflater.reset();
+                        inflater.setInput(packed);
+                        inflater.inflate(raw);
+
+                        ByteBuffer r = ByteBuffer.wrap(raw);
+                        for (int at = 0; at < raw.length; at += PACKED) {
+                            long time = r.getLong(at);
+                            if (r.getInt(at + 8) == account && time >= from && time <= to) {
+                                out.add(new Entry(time, account, (char) r.getInt(at + 12),
+                                                  r.getLong(at + 16), r.getLong(at + 24)));
+                            }
+                        }
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException(path + " is damaged", ex);
+                } finally {
+                    inflater.end();
+                }
+            }
+        }
+    }
+
+    // Open-addressing int → long map (-1 = absent); keys must be non-zero
+    private static class IntLongMap {
+        private int[]  keys   = new int[1024];
+        private long[] values = new long[1024];
+        private int size;
+
+        long get(int key) {
+            int mask = keys.length - 1;
+            for (int i = spread(key) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) return values[i];
+            }
+            return -1;
+        }
+
+        // Returns the previous value, or -1
+        long put(int key, long value) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            int i = spread(key) & mask;
+            while (keys[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+            long prev = keys[i] == key ? values[i] : -1;
+            if (keys[i] == 0) size++;
+            keys[i] = key;
+            values[i] = value;
+            return prev;
+        }
+
+        void clear() {
+            keys   = new int[1024];
+            values = new long[1024];
+            size   = 0;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            keys   = new int[oldKeys.length * 2];
+            values = new long[oldKeys.length * 2];
+            size   = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) put(oldKeys[i], oldValues[i]);
+            }
+        }
+
+        private static int spread(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 6) saveUsers() → Writes a full snapshot, swapping it in atomically
+    // ────────────────────────────────────────────────────────────────────────────
+
+    //   Writes `users`, normally a frozenUsers() copy. Serialized on its own
+    //   lock, since every snapshot goes through the same temp file.
+
+    private final Object snapshotLock = new Object();
+
+    private boolean saveUsers(AccountTable users) {
+        synchronized (snapshotLock) {
+            return writeSnapshot(users);
+        }
+    }
+
+    private boolean writeSnapshot(AccountTable users) {
+        if (lazyIndex != null) {
+            return lazyIndex.saveMerged(users);   // Only some accounts are in memory
+        }
+        try (BufferedWriter writer = Files.newBufferedWriter(SNAPSHOT_TMP_PATH)) {
+            users.forEach(u -> {
+                try {
+                    // Write each User as: account,name,password,balance[,lastSweep]
+                    writer.write(snapshotLine(users, u));
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Error saving users: " + e.getMessage());
+            return false;
+        }
+
+        try (FileChannel tmp = FileChannel.open(SNAPSHOT_TMP_PATH, StandardOpenOption.WRITE)) {
+            tmp.force(true);   // Snapshot must be on disk before the rename
+        } catch (IOException e) {
+            System.out.println("Error saving users: " + e.getMessage());
+            return false;
+        }
+
+        try {
+            // A crash before this line leaves the old users.txt untouched
+            Files.move(SNAPSHOT_TMP_PATH, DB_PATH,
+                       StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error replacing snapshot: " + e.getMessage());
+            return false;
+        }
+    }
+
+    // Copies every account in memory while holding all the stripe locks, so
+    // a snapshot never catches a transfer with only one side applied. The
+    // copy is a few array clones, cheap next to writing it out, which
+    // happens after unlocking.
+    private AccountTable frozenUsers() {
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();   // In order, like transfer()
+        }
+        try {
+            return usersByAccount.copy();
+        } finally {
+            for (int i = stripes.length - 1; i >= 0; i--) {
+                stripes[i].unlock();
+            }
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 7) createAccount() → Prompts user, builds new User, journals it
+    // ────────────────────────────────────────────────────────────────────────────
+
+    private void createAccount(Scanner input) {
+        System.out.print("Enter your name: ");
+        String name = input.nextLine().trim();
+
+        // Prevent duplicate usernames or blank names
+        while (name.isEmpty() || findByName(name) != null) {
+            if (name.isEmpty()) {
+                System.out.print("Name cannot be blank. Enter your name: ");
+            } else {
+                System.out.print("That name is taken. Enter a different name: ");
+            }
+            name = input.nextLine().trim();
+        }
+
+        System.out.print("Create a password: ");
+        String pass = input.nextLine().trim();
+
+        User u = openAccount(name, pass);
+        if (u == null) {
+            // Another session claimed the name since we checked
+            System.out.println("That name was just taken. Please try again.");
+            return;
+        }
+
+        System.out.println("Account created! Your account number: " + u.accountNumber);
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 8) accessAccount() → Login flow and sub-menu for account ops
+    // ────────────────────────────────────────────────────────────────────────────
+
+    private void accessAccount(Scanner input) {
+        System.out.print("Enter your name: ");
+        String name = input.nextLine().trim();
+        System.out.print("Enter your password: ");
+        String pass = input.nextLine().trim();
+
+        User current = findByName(name);       // O(1) lookup by name
+        if (current == null || !current.password.equals(pass)) {
+            System.out.println("Login failed. Check your credentials.");
+            return;  // Back to main menu
+        }
+
+        System.out.println("Login successful! Account #: " + current.accountNumber);
+
+        String opt;
+        do {
+            // Sub-menu display
+            System.out.println("\n1) View Balance   2) Deposit   3) Withdraw   4) Transfer   5) Statement   6) Logout");
+            System.out.print("Choose an option: ");
+            opt = input.nextLine().trim();
+
+            switch (opt) {
+                case "1":
+                    System.out.println("Balance: $" + formatCents(usersByAccount.balance(current)));
+                    break;
+
+                case "2":
+                    System.out.print("Amount to deposit: ");
+                    long dep = readAmount(input);
+                    System.out.println("Deposited. New balance: $" + formatCents(deposit(current, dep)));
+                    break;
+
+                case "3":
+                    System.out.print("Amount to withdraw: ");
+                    long w = readAmount(input);
+                    long left = withdraw(current, w);
+                    if (left >= 0) {
+                        System.out.println("Withdrawn. New balance: $" + formatCents(left));
+                    } else {
+                        System.out.println("Insufficient funds.");
+                    }
+                    break;
+
+                case "4":
+                    System.out.print("Account # to transfer to: ");
+                    int toAcc = readInt(input);
+                    System.out.print("Amount to transfer: ");
+                    long amt = readAmount(input);
+                    User to = findByAccount(toAcc);
+                    if (to == null || to == current) {
+                        System.out.println("Invalid destination account.");
+                    } else if (transfer(current, to, amt)) {
+                        System.out.println("Transferred. New balance: $"
+                                         + formatCents(usersByAccount.balance(current)));
+                    } else {
+                        System.out.println("Insufficient funds.");
+                    }
+                    break;
+
+                case "5":
+                    System.out.print("From date (yyyy-mm-dd): ");
+                    LocalDate from = readDate(input);
+                    System.out.print("To date (yyyy-mm-dd): ");
+                    LocalDate until = readDate(input);
+                    printStatement(current, from, until);
+                    break;
+
+                case "6":
+                    System.out.println("Logging out.");
+                    break;
+
+                default:
+                    System.out.println("Invalid option.");
+            }
+        } while (!opt.equals("6"));
+    }
+
+    private void printStatement(User u, LocalDate from, LocalDate until) {
+        if (history == null) {
+            System.out.println("Statements are unavailable right now.");
+            return;
+        }
+        ZoneId zone = ZoneId.systemDefault();
+        long start = from.atStartOfDay(zone).toInstant().toEpochMilli();
+        long end   = until.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1;
+
+        List<TransactionHistory.Entry> entries = history.statement(u.accountNumber, start, end);
+        System.out.println("Statement for #" + u.accountNumber + ", " + from + " to " + until + ":");
+        if (entries.isEmpty()) {
+            System.out.println("  No transactions.");
+        }
+        DateTimeFormatter fmt = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(zone);
+        for (TransactionHistory.Entry e : entries) {
+            boolean credit = e.type == 'D' || e.type == 'I' || e.type == 'A';
+            System.out.printf("  %s  %-12s %12s   balance $%s%n",
+                    fmt.format(Instant.ofEpochMilli(e.time)),
+                    TransactionHistory.describe(e.type),
+                    (credit ? "+" : "-") + formatCents(e.amount),
+                    formatCents(e.balance));
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 8b) Account engine → Thread-safe operations any session may call
+    // ────────────────────────────────────────────────────────────────────────────
+    //   A balance is only read-modify-written while holding its stripe lock,
+    //   and the journal record is queued under the same lock so records for
+    //   one account reach the journal in the order they were applied. The
+    //   wait for durability happens after unlocking, so other sessions can
+    //   join the same batch.
+    //   Different accounts (almost always) map to different stripes and so
+    //   never wait on each other.
+
+    // Looks an account up by number, reading it from disk in lazy mode
+    User findByAccount(int accountNumber) {
+        User u = usersByAccount.get(accountNumber);
+        if (u == null && lazyIndex != null) {
+            u = lazyIndex.loadByAccount(accountNumber);
+        }
+        return u;
+    }
+
+    // Looks an account up by name, reading it from disk in lazy mode
+    User findByName(String name) {
+        User u = usersByName.get(name);
+        if (u == null && lazyIndex != null) {
+            u = lazyIndex.loadByName(name);
+        }
+        return u;
+    }
+
+    // Creates an account, or returns null if the name is already taken
+    User openAccount(String name, String pass) {
+        if (lazyIndex != null && lazyIndex.loadByName(name) != null) {
+            return null;   // Taken by an account we simply hadn't read yet
+        }
+        int acc = nextAccountNumber.getAndIncrement();  // Atomic, never reused
+        User u = new User(acc, name, pass);
+
+        if (usersByName.putIfAbsent(name, u) != null) {
+            return null;   // Lost the race for this name
+        }
+        usersByAccount.put(u, 0, 0);
+
+        awaitDurable(logCreate(u));  // Persist before confirming
+        return u;
+    }
+
+    // Adds amount (cents) to u's balance and returns the new balance
+    long deposit(User u, long amount) {
+        requirePositive(amount);
+        ReentrantLock lock = lockFor(u.accountNumber);
+        long ticket;
+        long result;
+        lock.lock();
+        try {
+            result = usersByAccount.addBalance(u, amount);   // Update in memory
+            recordHistory(u, 'D', amount);
+            ticket = logBalance(u);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(ticket);      // Wait for the batch outside the lock
+        return result;
+    }
+
+    // Takes amount (cents) out of u's balance; returns the new balance,
+    // or -1 if the account doesn't hold enough (balances are never negative)
+    long withdraw(User u, long amount) {
+        requirePositive(amount);
+        ReentrantLock lock = lockFor(u.accountNumber);
+        long ticket;
+        long result;
+        lock.lock();
+        try {
+            if (!canWithdraw(u, amount)) {
+                return -1;
+            }
+            result = usersByAccount.addBalance(u, -amount);
+            recordHistory(u, 'W', amount);
+            ticket = logBalance(u);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(ticket);      // Wait for the batch outside the lock
+        return result;
+    }
+
+    // Moves amount from one account to another; false on insufficient funds
+    boolean transfer(User from, User to, long amount) {
+        requirePositive(amount);   // A negative one would pull money the other way
+        int a = stripeOf(from.accountNumber);
+        int b = stripeOf(to.accountNumber);
+
+        // Always take the lower stripe first, so two opposite transfers
+        // (A→B and B→A) can never each hold one lock and wait for the other
+        ReentrantLock first  = stripes[Math.min(a, b)];
+        ReentrantLock second = stripes[Math.max(a, b)];
+        long ticket;
+        first.lock();
+        if (second != first) second.lock();
+        try {
+            if (!canWithdraw(from, amount)) {
+                return false;
+            }
+            usersByAccount.addBalance(from, -amount);
+            usersByAccount.addBalance(to, amount);
+            recordHistory(from, 'O', amount);   // Transfer out
+            recordHistory(to,   'I', amount);   // Transfer in
+            ticket = logTransfer(from, to);  // Persist both sides at once
+        } finally {
+            if (second != first) second.unlock();
+            first.unlock();
+        }
+        awaitDurable(ticket);
+        return true;
+    }
+
+    // Same as deposit(), but returns the journal ticket instead of waiting
+    // for it; the caller awaits the last ticket it got once at the end
+    long depositQueued(User u, long amount) {
+        requirePositive(amount);
+        ReentrantLock lock = lockFor(u.accountNumber);
+        lock.lock();
+        try {
+            usersByAccount.addBalance(u, amount);
+            recordHistory(u, 'D', amount);
+            return logBalance(u);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Same as withdraw(), returning the ticket, or -1 on insufficient funds
+    long withdrawQueued(User u, long amount) {
+        requirePositive(amount);
+        ReentrantLock lock = lockFor(u.accountNumber);
+        lock.lock();
+        try {
+            if (!canWithdraw(u, amount)) {
+                return -1;
+            }
+            usersByAccount.addBalance(u, -amount);
+            recordHistory(u, 'W', amount);
+            return logBalance(u);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Appends to u's statement history; called under u's stripe lock so an
+    // account's entries are in the same order as its balance changes
+    private void recordHistory(User u, char type, long amount) {
+        if (history != null) {
+            history.record(u.accountNumber, type, amount, usersByAccount.balance(u));
+        }
+    }
+
+    // The one insufficient-funds rule every operation shares
+    private boolean canWithdraw(User u, long amount) {
+        return amount <= usersByAccount.balance(u);
+    }
+
+    // Every deposit, withdrawal and transfer moves a positive amount; callers
+    // that take amounts from outside check first and report it their own way
+    private static void requirePositive(long amount) {
+        if (amount <= 0) {
+            throw new IllegalArgumentException("amount must be positive: " + amount);
+        }
+    }
+
+    private int stripeOf(int accountNumber) {
+        return Math.floorMod(accountNumber, LOCK_STRIPES);
+    }
+
+    private ReentrantLock lockFor(int accountNumber) {
+        return stripes[stripeOf(accountNumber)];
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 8c) runBatch() → Streams an instruction file through worker threads
+    // ────────────────────────────────────────────────────────────────────────────
+    //   One instruction per line:   D,acc,amount   (deposit)
+    //                               W,acc,amount   (withdraw)
+    //
+    //   Lines are routed to worker (acc mod threads), so every instruction for
+    //   one account is applied by one thread in file order, while different
+    //   accounts proceed in parallel. Queues are bounded, so memory stays flat
+    //   however long the file is. Failed lines go to data/rejects.txt as
+    //   lineNo,original line,reason. Journal records are not awaited one by
+    //   one; each worker waits once for the last record it queued.
+    //
+    //   Whatever ends the run early (a read error, or a worker dying on an
+    //   unexpected exception) still hands every live worker END_OF_FILE and
+    //   joins them all before shutdown() runs; a dead worker stops the
+    //   reading and fails the run rather than leaving it blocked on that
+    //   worker's full queue.
+
+    private static final Path REJECTS_PATH = Paths.get("data", "rejects.txt");
+    private static final int BATCH_CHUNK = 512;   // Lines handed to a worker at once
+
+    private static final class Instruction {
+        final long lineNo;
+        final String line;
+
+        Instruction(long lineNo, String line) {
+            this.lineNo = lineNo;
+            this.line   = line;
+        }
+    }
+
+    private static final List<Instruction> END_OF_FILE = new ArrayList<>();
+
+    // False if the run stopped early
+    private boolean runBatch(Path file, int threads) {
+        if (threads < 1 || !open("text")) {
+            return false;
+        }
+
+        List<BlockingQueue<List<Instruction>>> queues = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong applied  = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        boolean ok = false;
+
+        long start = System.nanoTime();
+        long lines = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file);
+             PrintWriter rejects = new PrintWriter(Files.newBufferedWriter(REJECTS_PATH))) {
+
+            for (int w = 0; w < threads; w++) {
+                BlockingQueue<List<Instruction>> queue = new ArrayBlockingQueue<>(64);
+                queues.add(queue);
+                Thread t = new Thread(() -> {
+                    try {
+                        batchWorker(queue, latency, applied, rejected, rejects);
+                    } catch (RuntimeException | Error e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }, "bank-batch-" + w);
+                workers.add(t);
+                t.start();
+            }
+
+            try {
+                List<List<Instruction>> pending = new ArrayList<>();
+                for (int w = 0; w < threads; w++) {
+                    pending.add(new ArrayList<>(BATCH_CHUNK));
+                }
+
+                String line;
+                while (failure.get() == null && (line = reader.readLine()) != null) {
+                    lines++;
+                    int w = Math.floorMod(routeKey(line), threads);
+                    List<Instruction> chunk = pending.get(w);
+                    chunk.add(new Instruction(lines, line));
+                    if (chunk.size() == BATCH_CHUNK) {
+                        handOff(queues.get(w), chunk, workers.get(w));
+                        pending.set(w, new ArrayList<>(BATCH_CHUNK));
+                    }
+                }
+                for (int w = 0; w < threads && failure.get() == null; w++) {
+                    if (!pending.get(w).isEmpty()) handOff(queues.get(w), pending.get(w), workers.get(w));
+                }
+                ok = failure.get() == null;
+            } finally {
+                finishWorkers(queues, workers);   // Before rejects closes and before shutdown()
+            }
+        } catch (IOException e) {
+            System.out.println("Error running batch: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Batch interrupted.");
+        }
+        long elapsed = System.nanoTime() - start;
+        if (failure.get() != null) {
+            ok = false;
+            System.out.println("Batch stopped: a worker failed: " + failure.get());
+        }
+
+        shutdown();
+
+        double seconds = elapsed / 1e9;
+        System.out.println("Batch finished: " + lines + " lines in "
+                         + String.format("%.2f", seconds) + " s");
+        System.out.println("  applied:    " + applied.get());
+        System.out.println("  rejected:   " + rejected.get() + " (see " + REJECTS_PATH + ")");
+        System.out.println("  throughput: " + String.format("%.0f", lines / Math.max(seconds, 1e-9))
+                         + " instructions/s");
+        System.out.println("  latency:    " + latency.summary());
+        return ok;
+    }
+
+    // Queues a chunk for a worker, waiting while it is behind; gives up if
+    // the worker has died, since nothing would ever take it
+    private static void handOff(BlockingQueue<List<Instruction>> queue, List<Instruction> chunk,
+                                Thread worker) throws InterruptedException {
+        while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+            if (!worker.isAlive()) return;
+        }
+    }
+
+    // Hands every worker still running END_OF_FILE and waits for them all,
+    // even if this thread is interrupted meanwhile
+    private static void finishWorkers(List<BlockingQueue<List<Instruction>>> queues, List<Thread> workers) {
+        boolean interrupted = Thread.interrupted();
+        for (int w = 0; w < workers.size(); w++) {
+            while (true) {
+                try {
+                    handOff(queues.get(w), END_OF_FILE, workers.get(w));
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        for (Thread t : workers) {
+            while (true) {
+                try {
+                    t.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Account number used for routing; anything unparsable goes to worker 0,
+    // which will reject it
+    private static int routeKey(String line) {
+        int first = line.indexOf(',');
+        int second = line.indexOf(',', first + 1);
+        if (first < 0 || second < 0) return 0;
+        try {
+            return Integer.parseInt(line.substring(first + 1, second).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void batchWorker(BlockingQueue<List<Instruction>> queue, LatencyHistogram latency,
+                             AtomicLong applied, AtomicLong rejected, PrintWriter rejects) {
+        long lastTicket = 0;
+        try {
+            List<Instruction> chunk;
+            while ((chunk = queue.take()) != END_OF_FILE) {
+                for (Instruction in : chunk) {
+                    long t0 = System.nanoTime();
+                    String reason = null;
+                    String[] parts = in.line.split(",");
+                    try {
+                        User u = parts.length == 3 ? findByAccount(Integer.parseInt(parts[1].trim())) : null;
+                        long amount = parts.length == 3 ? parseCents(parts[2]) : 0;
+                        if (parts.length != 3) {
+                            reason = "malformed line";
+                        } else if (u == null) {
+                            reason = "no such account";
+                        } else if (amount <= 0) {
+                            reason = "amount must be positive";
+                        } else if (parts[0].equals("D")) {
+                            lastTicket = Math.max(lastTicket, depositQueued(u, amount));
+                        } else if (parts[0].equals("W")) {
+                            long ticket = withdrawQueued(u, amount);
+                            if (ticket < 0) {
+                                reason = "insufficient funds";
+                            } else {
+                                lastTicket = Math.max(lastTicket, ticket);
+                            }
+                        } else {
+                            reason = "unknown operation";
+                        }
+                    } catch (NumberFormatException | ArithmeticException e) {
+                        reason = "bad number";
+                    }
+                    latency.record(System.nanoTime() - t0);
+
+                    if (reason == null) {
+                        applied.incrementAndGet();
+                    } else {
+                        rejected.incrementAndGet();
+                        synchronized (rejects) {
+                            rejects.println(in.lineNo + "," + in.line + "," + reason);
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            awaitDurable(lastTicket);   // Everything this worker applied is on disk
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 8e) serve() → The account engine over a TCP line protocol
+    // ────────────────────────────────────────────────────────────────────────────
+    //   One request per line, one response line each, CSV like the data files:
+    //
+    //     CREATE,name,password    → OK,<account #>   | ERR,name taken
+    //     LOGIN,name,password     → OK,<account #>   | ERR,login failed
+    //     BALANCE                 → OK,<balance>
+    //     DEPOSIT,amount          → OK,<new balance>
+    //     WITHDRAW,amount         → OK,<new balance> | ERR,insufficient funds
+    //     TRANSFER,acc,amount     → OK,<new balance> | ERR,...
+    //
+    //   Amounts must be greater than zero, or the reply is ERR and nothing
+    //   moves; test/BankProtocolTest checks this against a scratch server.
+    //     QUIT                    → OK,bye (and the connection closes)
+    //
+    //   Each connection gets its own thread running blocking I/O. On a JVM
+    //   with virtual threads (21+) those are virtual, so tens of thousands of
+    //   idle sessions cost little; older JVMs fall back to a cached pool.
+
+    private static final int DEFAULT_PORT = 7070;
+
+    private void serve(int port) {
+        if (!open("text")) {
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));  // Ctrl-C
+
+        // Operator console: "sweep interest 25" etc. runs alongside the sessions
+        Thread console = new Thread(() -> {
+            Scanner admin = new Scanner(System.in);
+            while (admin.hasNextLine()) {
+                String[] words = admin.nextLine().trim().split("\\s+");
+                if (words[0].equals("sweep")) {
+                    runSweep(Arrays.copyOfRange(words, 1, words.length));
+                } else if (!words[0].isEmpty()) {
+                    System.out.println("Console commands: sweep interest <bp> | sweep fee <amount> <below>");
+                }
+            }
+        }, "bank-console");
+        console.setDaemon(true);
+        console.start();
+
+        ExecutorService sessions = newSessionExecutor();
+        try (ServerSocket server = new ServerSocket()) {
+            server.bind(new InetSocketAddress(port), 1024);
+            System.out.println("Bank listening on port " + port + ".");
+            while (true) {
+                Socket client = server.accept();
+                sessions.execute(() -> serveClient(client));
+            }
+        } catch (IOException e) {
+            System.out.println("Server error: " + e.getMessage());
+        } finally {
+            sessions.shutdown();
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() when the JVM has it
+    private static ExecutorService newSessionExecutor() {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void serveClient(Socket client) {
+        try (client;
+             BufferedReader in = new BufferedReader(new InputStreamReader(
+                     client.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                     client.getOutputStream(), StandardCharsets.UTF_8))) {
+
+            client.setTcpNoDelay(true);
+            User current = null;   // Set by a successful CREATE or LOGIN
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split(",", -1);
+                String reply;
+                String cmd = parts[0].trim().toUpperCase();
+                try {
+                    if (cmd.equals("QUIT")) {
+                        out.write("OK,bye\n");
+                        out.flush();
+                        return;
+                    } else if (cmd.equals("CREATE") && parts.length == 3) {
+                        String name = parts[1].trim();
+                        User u = name.isEmpty() ? null : openAccount(name, parts[2].trim());
+                        if (u == null) {
+                            reply = "ERR,name taken";
+                        } else {
+                            current = u;
+                            reply = "OK," + u.accountNumber;
+                        }
+                    } else if (cmd.equals("LOGIN") && parts.length == 3) {
+                        User u = findByName(parts[1].trim());
+                        if (u == null || !u.password.equals(parts[2].trim())) {
+                            reply = "ERR,login failed";
+                        } else {
+                            current = u;
+                            reply = "OK," + u.accountNumber;
+                        }
+                    } else if (current == null) {
+                        reply = "ERR,not logged in";
+                    } else if (cmd.equals("BALANCE") && parts.length == 1) {
+                        reply = "OK," + formatCents(usersByAccount.balance(current));
+                    } else if (cmd.equals("DEPOSIT") && parts.length == 2) {
+                        long amount = parseCents(parts[1]);
+                        reply = amount <= 0 ? "ERR,amount must be positive"
+                                            : "OK," + formatCents(deposit(current, amount));
+                    } else if (cmd.equals("WITHDRAW") && parts.length == 2) {
+                        long amount = parseCents(parts[1]);
+                        long left = amount <= 0 ? 0 : withdraw(current, amount);
+                        reply = amount <= 0 ? "ERR,amount must be positive"
+                              : left >= 0   ? "OK," + formatCents(left) : "ERR,insufficient funds";
+                    } else if (cmd.equals("TRANSFER") && parts.length == 3) {
+                        User to = findByAccount(Integer.parseInt(parts[1].trim()));
+                        long amount = parseCents(parts[2]);
+                        if (amount <= 0) {
+                            reply = "ERR,amount must be positive";
+                        } else if (to == null || to == current) {
+                            reply = "ERR,invalid destination account";
+                        } else if (transfer(current, to, amount)) {
+                            reply = "OK," + formatCents(usersByAccount.balance(current));
+                        } else {
+                            reply = "ERR,insufficient funds";
+                        }
+                    } else {
+                        reply = "ERR,unknown command";
+                    }
+                } catch (NumberFormatException | ArithmeticException e) {
+                    reply = "ERR,bad number";
+                }
+                out.write(reply);
+                out.write('\n');
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away; nothing to clean up beyond the socket
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 8f) loadGenerator() → Many concurrent clients against `java Bank serve`
+    // ────────────────────────────────────────────────────────────────────────────
+    //   Every client opens its own account, then loops DEPOSIT / BALANCE /
+    //   WITHDRAW. Latency is measured per request, send to reply.
+
+    private static void loadGenerator(String host, int port, int clients, int requests) {
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong done   = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch go    = new CountDownLatch(1);
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+
+        ExecutorService pool = newSessionExecutor();
+        List<Future<?>> futures = new ArrayList<>();
+        for (int c = 0; c < clients; c++) {
+            int id = c;
+            futures.add(pool.submit(() -> {
+                boolean counted = false;
+                try (Socket socket = new Socket(host, port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(
+                             socket.getInputStream(), StandardCharsets.UTF_8));
+                     BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                             socket.getOutputStream(), StandardCharsets.UTF_8))) {
+
+                    socket.setTcpNoDelay(true);
+                    request(in, out, "CREATE,load-" + runId + "-" + id + ",pw");
+                    ready.countDown();
+                    counted = true;
+                    go.await();
+
+                    String[] script = { "DEPOSIT,1.00", "BALANCE", "WITHDRAW,0.50" };
+                    for (int r = 0; r < requests; r++) {
+                        long t0 = System.nanoTime();
+                        String reply = request(in, out, script[r % script.length]);
+                        latency.record(System.nanoTime() - t0);
+                        if (reply == null || !reply.startsWith("OK")) errors.incrementAndGet();
+                        done.incrementAndGet();
+                    }
+                    request(in, out, "QUIT");
+                } catch (IOException | InterruptedException e) {
+                    errors.incrementAndGet();
+                    if (!counted) ready.countDown();
+                }
+                return null;
+            }));
+        }
+
+        try {
+            ready.await();
+            long start = System.nanoTime();
+            go.countDown();
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(clients + " clients, " + done.get() + " requests in "
+                             + String.format("%.2f", seconds) + " s");
+            System.out.println("  throughput: " + String.format("%.0f", done.get() / seconds) + " requests/s");
+            System.out.println("  errors:     " + errors.get());
+            System.out.println("  latency:    " + latency.summary());
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Load generator failed: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static String request(BufferedReader in, BufferedWriter out, String line) throws IOException {
+        out.write(line);
+        out.write('\n');
+        out.flush();
+        return in.readLine();
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 8g) runSweep() → Parallel, resumable job over every account
+    // ────────────────────────────────────────────────────────────────────────────
+    //   The account space [1001, nextAccountNumber) is cut into ranges of
+    //   SWEEP_RANGE numbers and fork/join splits the ranges across cores.
+    //   Each account is updated under its own stripe lock, exactly like a
+    //   deposit, so online sessions keep running and are never overwritten;
+    //   they only ever wait for the one account being swept.
+    //
+    //   Every account the job changes records its id (lastSweep, journaled
+    //   with the new balance), so an account is never charged twice for one
+    //   job; accounts it leaves alone write nothing. Ids come from a counter
+    //   in data/sweep.id, so two jobs never share one.
+    //   data/sweep.ckpt holds the job spec and the ranges finished so far;
+    //   after a crash, the next sweep resumes that job and skips those ranges.
+    //
+    //   Sweeps run one at a time on sweepLock, never on the Bank monitor: a
+    //   sweep waits on the journal, and nothing the journal does may wait on
+    //   a sweep.
+
+    private static final Path SWEEP_CHECKPOINT_PATH = Paths.get("data", "sweep.ckpt");
+    private static final Path SWEEP_ID_PATH = Paths.get("data", "sweep.id");
+    private static final Path SWEEP_ID_TMP_PATH = Paths.get("data", "sweep.id.tmp");
+    private static final int SWEEP_RANGE = 4096;
+
+    private final Object sweepLock = new Object();
+
+    // What a sweep does to one account: the signed change in cents
+    private interface SweepJob {
+        long change(long balance);   // Balance in cents
+        char historyType();
+    }
+
+    private static SweepJob parseSweepJob(String[] spec) {
+        try {
+            if (spec.length == 2 && spec[0].equals("interest")) {
+                long bp = Long.parseLong(spec[1]);   // 25 = 0.25% of the balance
+                return new SweepJob() {
+                    public long change(long balance) {
+                        return balance <= 0 ? 0 : (balance * bp + 5_000) / 10_000;
+                    }
+                    public char historyType() { return 'A'; }
+                };
+            }
+            if (spec.length == 3 && spec[0].equals("fee")) {
+                long fee   = parseCents(spec[1]);
+                long below = parseCents(spec[2]);    // Only balances under this pay
+                return new SweepJob() {
+                    public long change(long balance) {
+                        return balance < below ? -Math.min(fee, balance) : 0;
+                    }
+                    public char historyType() { return 'F'; }
+                };
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // Falls through to usage
+        }
+        return null;
+    }
+
+    private void runSweep(String[] spec) {
+        synchronized (sweepLock) {
+            sweepOnce(spec);
+        }
+    }
+
+    private void sweepOnce(String[] spec) {
+        int jobId;
+        BitSet done = new BitSet();
+        String[] requested = spec;
+
+        // An unfinished job always runs to completion first
+        String[] resumed = readSweepCheckpoint(done);
+        if (resumed != null) {
+            jobId = Integer.parseInt(resumed[0]);
+            spec = Arrays.copyOfRange(resumed, 1, resumed.length);
+            System.out.println("Resuming sweep " + String.join(" ", spec) + " ("
+                             + done.cardinality() + " ranges already done).");
+        } else {
+            jobId = 0;   // Drawn once the spec is known to be valid
+        }
+
+        SweepJob job = parseSweepJob(spec);
+        if (job == null) {
+            System.out.println("Usage: sweep interest <basis points> | sweep fee <amount> <below>");
+            return;
+        }
+        if (resumed == null) {
+            try {
+                jobId = nextSweepId();
+            } catch (IOException e) {
+                System.out.println("Error saving " + SWEEP_ID_PATH + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        int ranges = (nextAccountNumber.get() - 1001 + SWEEP_RANGE - 1) / SWEEP_RANGE;
+        AtomicLong touched = new AtomicLong();
+        long start = System.nanoTime();
+
+        try (BufferedWriter checkpoint = openSweepCheckpoint(resumed == null, jobId, spec)) {
+            ForkJoinPool.commonPool().invoke(new SweepTask(0, ranges, job, jobId, done, checkpoint, touched));
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Sweep stopped: " + e.getMessage() + " (run it again to resume)");
+            return;
+        }
+
+        try {
+            Files.deleteIfExists(SWEEP_CHECKPOINT_PATH);   // Job complete
+        } catch (IOException e) {
+            System.out.println("Error removing sweep checkpoint: " + e.getMessage());
+        }
+        System.out.printf("Sweep %s finished: %d accounts changed in %.2f s%n",
+                String.join(" ", spec), touched.get(), (System.nanoTime() - start) / 1e9);
+
+        if (resumed != null && !Arrays.equals(spec, requested)) {
+            sweepOnce(requested);   // Now the job that was actually asked for
+        }
+    }
+
+    // One past both the last id handed out and any id an account already
+    // carries (older jobs used epoch seconds); on disk before the job starts
+    private int nextSweepId() throws IOException {
+        int[] last = { 0 };
+        try {
+            last[0] = Integer.parseInt(Files.readString(SWEEP_ID_PATH).trim());
+        } catch (NoSuchFileException | NumberFormatException e) {
+            // First sweep, or a torn write: the accounts' ids still bound it
+        }
+        usersByAccount.forEach(u -> last[0] = Math.max(last[0], usersByAccount.lastSweep(u)));
+        int id = last[0] + 1;
+
+        try (FileChannel tmp = FileChannel.open(SWEEP_ID_TMP_PATH, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            tmp.write(ByteBuffer.wrap((id + "\n").getBytes(StandardCharsets.UTF_8)));
+            tmp.force(false);
+        }
+        Files.move(SWEEP_ID_TMP_PATH, SWEEP_ID_PATH,
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        return id;
+    }
+
+    private class SweepTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;   // Range numbers [from, to)
+        private final SweepJob job;
+        private final int jobId;
+        private final BitSet done;
+        private final BufferedWriter checkpoint;
+        private final AtomicLong touched;
+
+        SweepTask(int from, int to, SweepJob job, int jobId, BitSet done,
+                  BufferedWriter checkpoint, AtomicLong touched) {
+            this.from = from;
+            this.to = to;
+            this.job = job;
+            this.jobId = jobId;
+            this.done = done;
+            this.checkpoint = checkpoint;
+            this.touched = touched;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new SweepTask(from, mid, job, jobId, done, checkpoint, touched),
+                          new SweepTask(mid, to, job, jobId, done, checkpoint, touched));
+                return;
+            }
+            if (done.get(from)) {
+                return;   // Finished before the crash
+            }
+
+            long lastTicket = 0;
+            int first = 1001 + from * SWEEP_RANGE;
+            for (int acc = first; acc < first + SWEEP_RANGE; acc++) {
+                User u = findByAccount(acc);
+                if (u == null) continue;
+
+                ReentrantLock lock = lockFor(acc);
+                lock.lock();
+                try {
+                    if (usersByAccount.lastSweep(u) == jobId) continue;   // Already applied
+                    long change = job.change(usersByAccount.balance(u));
+                    if (change == 0) continue;            // Nothing to record
+                    usersByAccount.addBalance(u, change);
+                    usersByAccount.setLastSweep(u, jobId);
+                    recordHistory(u, job.historyType(), Math.abs(change));
+                    touched.incrementAndGet();
+                    lastTicket = logSweep(u);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            awaitDurableInPool(lastTicket);   // Range is on disk before we say so
+
+            synchronized (checkpoint) {
+                try {
+                    checkpoint.write(Integer.toString(from));
+                    checkpoint.newLine();
+                    checkpoint.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+    }
+
+    // awaitDurable() for a fork/join worker: the pool is told the thread is
+    // about to block and may start a spare, so the other ranges keep going
+    // while this one waits for its flush (sweeps run on the common pool)
+    private void awaitDurableInPool(long ticket) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean durable = ticket == 0;
+
+                @Override
+                public boolean block() {
+                    awaitDurable(ticket);
+                    durable = true;
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return durable;
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();   // awaitDurable itself doesn't throw it
+        }
+    }
+
+    // Returns {jobId, spec...} of an unfinished sweep and fills `done`,
+    // or null if there is none
+    private String[] readSweepCheckpoint(BitSet done) {
+        if (!Files.exists(SWEEP_CHECKPOINT_PATH)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(SWEEP_CHECKPOINT_PATH)) {
+            String header = reader.readLine();   // jobId,spec words...
+            if (header == null) {
+                return null;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                try {
+                    done.set(Integer.parseInt(line.trim()));
+                } catch (NumberFormatException e) {
+                    break;   // Torn last line
+                }
+            }
+            return header.split(",");
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("Error reading sweep checkpoint: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private BufferedWriter openSweepCheckpoint(boolean fresh, int jobId, String[] spec) throws IOException {
+        if (fresh) {
+            BufferedWriter w = Files.newBufferedWriter(SWEEP_CHECKPOINT_PATH);
+            w.write(jobId + "," + String.join(",", spec));
+            w.newLine();
+            w.flush();
+            return w;
+        }
+        return Files.newBufferedWriter(SWEEP_CHECKPOINT_PATH, StandardOpenOption.APPEND);
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 8d) LatencyHistogram → Lock-free log-linear histogram of nanoseconds
+    // ────────────────────────────────────────────────────────────────────────────
+    //   Each power of two is split into 8 sub-buckets, so any percentile is
+    //   reported within 12.5% of the true value, in fixed memory.
+
+    private static class LatencyHistogram {
+        private static final int SUB = 8;
+        private final AtomicLongArray counts = new AtomicLongArray(64 * SUB);
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long nanos) {
+            nanos = Math.max(nanos, 1);
+            counts.incrementAndGet(bucket(nanos));
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        // Upper bound of the bucket holding the p-th percentile (0-100)
+        long percentile(double p) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) total += counts.get(i);
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(total * p / 100.0), seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) return Math.min(upperBound(i), max.get());
+            }
+            return max.get();
+        }
+
+        String summary() {
+            return "p50 " + micros(percentile(50)) + "  p90 " + micros(percentile(90))
+                 + "  p99 " + micros(percentile(99)) + "  p99.9 " + micros(percentile(99.9))
+                 + "  max " + micros(max.get());
+        }
+
+        private static String micros(long nanos) {
+            return String.format("%.1fus", nanos / 1000.0);
+        }
+
+        private static int bucket(long nanos) {
+            int exp = 63 - Long.numberOfLeadingZeros(nanos);         // floor(log2)
+            if (exp < 3) return (int) nanos;                         // 1..7 exactly
+            int sub = (int) (nanos >>> (exp - 3)) & (SUB - 1);       // next 3 bits
+            return exp * SUB + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            int exp = bucket / SUB, sub = bucket % SUB;
+            if (exp < 3) return bucket;
+            return ((long) (SUB + sub + 1) << (exp - 3)) - 1;
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 9) Helpers to safely parse numbers from input
+    // ────────────────────────────────────────────────────────────────────────────
+
+    // Reads a dollar amount such as 12.5 and returns it in cents (1250);
+    // only amounts above zero are accepted
+    private long readAmount(Scanner input) {
+        while (true) {
+            try {
+                String line = input.nextLine().trim();
+                long cents = parseCents(line);
+                if (cents > 0) {
+                    return cents;
+                }
+                System.out.print("Please enter an amount greater than 0: ");
+            } catch (NumberFormatException | ArithmeticException e) {
+                System.out.print("Please enter a valid number: ");
+            }
+        }
+    }
+
+    private LocalDate readDate(Scanner input) {
+        while (true) {
+            try {
+                return LocalDate.parse(input.nextLine().trim());
+            } catch (DateTimeParseException e) {
+                System.out.print("Please enter a date like 2024-01-31: ");
+            }
+        }
+    }
+
+    // Same as readAmount, for whole numbers such as account numbers
+    private int readInt(Scanner input) {
+        while (true) {
+            try {
+                String line = input.nextLine().trim();
+                return Integer.parseInt(line);
+            } catch (NumberFormatException e) {
+                System.out.print("Please enter a whole number: ");
+            }
+        }
+    }
+
+    // "12.5", "9.99876876E8" → whole cents, rounding half-up; all balance
+    // arithmetic is then exact long math
+    static long parseCents(String text) {
+        return new BigDecimal(text.trim())
+                .setScale(2, RoundingMode.HALF_UP)
+                .movePointRight(2)
+                .longValueExact();
+    }
+
+    // 1250 → "12.50"
+    static String formatCents(long cents) {
+        return BigDecimal.valueOf(cents, 2).toPlainString();
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 10) User class → one account's login details
+    // ────────────────────────────────────────────────────────────────────────────
+    //   Balance and last sweep job live in the AccountTable's columns, at the
+    //   row the table gave this account; a User is just the handle sessions
+    //   hold and the key to that row.
+
+    private static class User {
+        int    accountNumber;
+        String name;
+        String password;
+        int    row = -1;           // Set by AccountTable.put()
+
+        User(int accountNumber, String name, String password) {
+            this.accountNumber = accountNumber;
+            this.name          = name;
+            this.password      = password;
+        }
+    }
+
+    // ────────────────────────────────────────────────────────────────────────────
+    // 11) AccountTable → Open-addressing int → row index over primitive columns
+    // ────────────────────────────────────────────────────────────────────────────
+    //   Every account gets the next row when first put, and keeps it. Balances
+    //   (long cents) and last sweep ids (int) are columns indexed by row, and
+    //   so are the Users; none of them holds a per-account object of its own.
+    //   Columns grow in CHUNK_ROWS pieces that never move once allocated, so
+    //   growing never copies a balance that a session may be writing.
+    //
+    //   A balance is read-modify-written only under its account's stripe lock
+    //   (the table doesn't know the stripes); reads outside one see the last
+    //   write whole, since balance elements are accessed as volatiles.
+    //
+    //   Account number → row is two parallel arrays, keys[] and rows[], probed
+    //   linearly; unlike a HashMap<Integer,User> there is no boxed Integer and
+    //   no entry node. Accounts are never removed, so a slot is either free
+    //   (key 0) or permanently owned. Lookups are optimistic: read without
+    //   locking, then validate() that no insert/resize ran meanwhile, and only
+    //   fall back to a read lock if one did. Inserts are rare (new accounts)
+    //   and take the write lock.
+
+    private static class AccountTable {
+        private static final int FREE = 0;   // Account numbers start at 1001
+        private static final int CHUNK_SHIFT = 14;
+        private static final int CHUNK_ROWS  = 1 << CHUNK_SHIFT;
+        private static final int CHUNK_MASK  = CHUNK_ROWS - 1;
+        private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final StampedLock lock = new StampedLock();
+        private int[] keys = new int[1024];
+        private int[] rows = new int[1024];
+        private int size;   // Rows in use
+
+        // Chunk arrays are replaced (never their chunks) when a chunk is added
+        private volatile User[][] users    = new User[0][];
+        private volatile long[][] balances = new long[0][];
+        private volatile int[][]  sweeps   = new int[0][];
+
+        User get(int accountNumber) {
+            long stamp = lock.tryOptimisticRead();
+            int[] k = keys;
+            int[] r = rows;
+            int row = (k.length == r.length) ? find(k, r, accountNumber) : -1;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    row = find(keys, rows, accountNumber);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return row < 0 ? null : users[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+        }
+
+        // Inserts, or replaces the User for that number in its existing row;
+        // either way the row then holds balance and lastSweep. Returns the
+        // previous User for that number.
+        User put(User u, long balance, int lastSweep) {
+            if (u.accountNumber == FREE) {
+                throw new IllegalArgumentException("account number 0 is reserved");
+            }
+            long stamp = lock.writeLock();
+            try {
+                if ((size + 1) * 2 > keys.length) {
+                    resize();   // Keep load ≤ 50% so probes stay short
+                }
+                int i = indexFor(u.accountNumber, keys.length);
+                while (keys[i] != FREE && keys[i] != u.accountNumber) {
+                    i = (i + 1) & (keys.length - 1);
+                }
+                User old = null;
+                if (keys[i] == FREE) {
+                    if ((size & CHUNK_MASK) == 0) {
+                        addChunk();
+                    }
+                    rows[i] = size++;
+                } else {
+                    old = users[rows[i] >>> CHUNK_SHIFT][rows[i] & CHUNK_MASK];
+                }
+                int row = rows[i];
+                u.row = row;
+                users[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = u;
+                LONGS.setVolatile(balances[row >>> CHUNK_SHIFT], row & CHUNK_MASK, balance);
+                sweeps[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = lastSweep;
+                keys[i] = u.accountNumber;
+                return old;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        long balance(User u) {
+            return (long) LONGS.getVolatile(balances[u.row >>> CHUNK_SHIFT], u.row & CHUNK_MASK);
+        }
+
+        // Caller holds u's stripe lock
+        void setBalance(User u, long cents) {
+            LONGS.setVolatile(balances[u.row >>> CHUNK_SHIFT], u.row & CHUNK_MASK, cents);
+        }
+
+        // Caller holds u's stripe lock; returns the new balance
+        long addBalance(User u, long cents) {
+            long[] chunk = balances[u.row >>> CHUNK_SHIFT];
+            long balance = (long) LONGS.getVolatile(chunk, u.row & CHUNK_MASK) + cents;
+            LONGS.setVolatile(chunk, u.row & CHUNK_MASK, balance);
+            return balance;
+        }
+
+        int lastSweep(User u) {
+            return sweeps[u.row >>> CHUNK_SHIFT][u.row & CHUNK_MASK];
+        }
+
+        // Caller holds u's stripe lock
+        void setLastSweep(User u, int jobId) {
+            sweeps[u.row >>> CHUNK_SHIFT][u.row & CHUNK_MASK] = jobId;
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Visits every account; ones inserted during the walk may be missed
+        void forEach(Consumer<User> action) {
+            User[][] u;
+            int n;
+            long stamp = lock.readLock();
+            try {
+                u = users;
+                n = size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            for (int row = 0; row < n; row++) {
+                action.accept(u[row >>> CHUNK_SHIFT][row & CHUNK_MASK]);
+            }
+        }
+
+        // A copy with the same rows, so the same Users index into it; the
+        // caller holds every stripe lock, so no balance moves meanwhile
+        AccountTable copy() {
+            AccountTable c = new AccountTable();
+            long stamp = lock.readLock();
+            try {
+                c.keys = keys.clone();
+                c.rows = rows.clone();
+                c.size = size;
+                User[][] u = new User[users.length][];
+                long[][] b = new long[balances.length][];
+                int[][]  s = new int[sweeps.length][];
+                for (int j = 0; j < u.length; j++) {
+                    u[j] = users[j].clone();
+                    b[j] = balances[j].clone();
+                    s[j] = sweeps[j].clone();
+                }
+                c.users = u;
+                c.balances = b;
+                c.sweeps = s;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+            return c;
+        }
+
+        // Row of accountNumber, or -1
+        private static int find(int[] k, int[] r, int accountNumber) {
+            int mask = k.length - 1;
+            int i = indexFor(accountNumber, k.length);
+            for (int probes = 0; probes < k.length; probes++) {
+                int key = k[i];
+                if (key == accountNumber) return r[i];
+                if (key == FREE) return -1;
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        private void addChunk() {
+            int n = users.length;
+            User[][] u = Arrays.copyOf(users, n + 1);
+            long[][] b = Arrays.copyOf(balances, n + 1);
+            int[][]  s = Arrays.copyOf(sweeps, n + 1);
+            u[n] = new User[CHUNK_ROWS];
+            b[n] = new long[CHUNK_ROWS];
+            s[n] = new int[CHUNK_ROWS];
+            users = u;
+            balances = b;
+            sweeps = s;
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            int[] oldRows = rows;
+            int[] newKeys = new int[oldKeys.length * 2];
+            int[] newRows = new int[oldKeys.length * 2];
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] == FREE) continue;
+                int i = indexFor(oldKeys[j], newKeys.length);
+                while (newKeys[i] != FREE) {
+                    i = (i + 1) & (newKeys.length - 1);
+                }
+                newKeys[i] = oldKeys[j];
+                newRows[i] = oldRows[j];
+            }
+            keys = newKeys;
+            rows = newRows;
+        }
+
+        // Sequential account numbers would cluster; spread them first
+        private static int indexFor(int accountNumber, int capacity) {
+            int h = accountNumber * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & (capacity - 1);
         }
     }
 }
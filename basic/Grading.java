@@ -1,42 +1,108 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
 
 public class Grading {
     // — DATA FILES —
     private static final Path TEACHERS_PATH = Paths.get("data", "teachers.txt");
     private static final Path STUDENTS_PATH = Paths.get("data", "students.txt");
+    private static final Path SNAPSHOT_PATH = Paths.get("data", "grading.dat");
+    private static final Path LOG_PATH      = Paths.get("data", "grading.log");
+    private static final Path REPORTS_DIR   = Paths.get("data", "reports");
+
+    // — CHANGE LOG (null while loading, so replayed changes aren't re-logged) —
+    private DataOutputStream changeLog;
 
     // — USER INPUT & ID SEED —
     private final Scanner input = new Scanner(System.in);
-    private int nextID = 1000;
+    private final AtomicInteger nextID = new AtomicInteger(1000);   // Shared by all three kinds
 
     // — PRIMARY LOGIN & LOOKUP MAPS —
-    private static final Map<String, Teacher> teacherByUsername = new HashMap<>();
-    private static final Map<String, Student> studentByUsername = new HashMap<>();
-    private static final Map<String, Subject> subjectByName   = new HashMap<>();
+    // Concurrent maps so any number of sessions can read and register at once.
+    // Per-subject state is guarded by the Subject's own monitor, ratings by the
+    // Teacher's, so grading one subject never waits on another.
+    private static final Map<String, Teacher> teacherByUsername = new ConcurrentHashMap<>();
+    private static final Map<String, Student> studentByUsername = new ConcurrentHashMap<>();
+    private static final Map<String, Subject> subjectByName   = new ConcurrentHashMap<>();
 
-    private static final Map<Integer, Teacher> teacherByID    = new HashMap<>();
-    private static final Map<Integer, Student> studentByID    = new HashMap<>();
-    private static final Map<Integer, Subject> subjectByID    = new HashMap<>();
+    private static final Map<Integer, Teacher> teacherByID    = new ConcurrentHashMap<>();
+    private static final Map<Integer, Student> studentByID    = new ConcurrentHashMap<>();
+    private static final Map<Integer, Subject> subjectByID    = new ConcurrentHashMap<>();
 
     // — SECONDARY NAME LOOKUPS —
-    private static final Map<String, List<Teacher>> teachersByName = new HashMap<>();
-    private static final Map<String, List<Student>> studentsByName = new HashMap<>();
+    private static final Map<String, List<Teacher>> teachersByName = new ConcurrentHashMap<>();
+    private static final Map<String, List<Student>> studentsByName = new ConcurrentHashMap<>();
+
+    // — NAME SEARCH (teachers and students share one ID space) —
+    private static final NameIndex nameIndex = new NameIndex();
+
+    // — OVERALL RANKING by each student's average grade (guarded by itself) —
+    private static final RankTree averageBoard = new RankTree();
+
+    // Usernames are unique across teachers and students, so claiming one
+    // has to check both maps as a single step
+    private static final Object usernameLock = new Object();
 
+    // java Grading                 → interactive menus
+    // java Grading reports [dir]    → every student's report card, in parallel
+    // java Grading import <csv>     → bulk enrollments and grades (see CSV GRADEBOOK)
+    // java Grading export <csv>     → every enrollment and grade
     public static void main(String[] args) {
-        new Grading().run();
+        if (args.length > 0 && args[0].equals("reports")) {
+            Grading g = new Grading();
+            g.load();
+            g.writeReports(args.length > 1 ? Paths.get(args[1]) : REPORTS_DIR);
+        } else if (args.length > 1 && args[0].equals("import")) {
+            Grading g = new Grading();
+            g.load();
+            g.openLog();
+            g.importGradebook(Paths.get(args[1]), null);
+            g.closeLog();
+            g.writeSnapshot();
+        } else if (args.length > 1 && args[0].equals("export")) {
+            Grading g = new Grading();
+            g.load();
+            g.exportGradebook(Paths.get(args[1]), null);
+        } else {
+            new Grading().run();
+        }
     }
 
     private void run() {
-        // initialize
-        createDataFilesIfNeeded();
-        loadTeachers();
-        loadStudents();
+        load();
+        openLog();
 
         // main loop
         boolean exit = false;
@@ -56,6 +122,8 @@ public class Grading {
                 case "4" -> loginStudent();
                 case "5" -> {
                     exit = true;
+                    closeLog();
+                    writeSnapshot();
                     saveTeachers();
                     saveStudents();
                     System.out.println("Goodbye!");
@@ -79,11 +147,11 @@ public class Grading {
         System.out.print("Enter your full name: ");
         String n = input.nextLine().trim();
 
-        int id = nextID++;
-        Teacher t = new Teacher(id, u, p, n);
-        teacherByID.put(id, t);
-        teacherByUsername.put(u, t);
-        teachersByName.computeIfAbsent(n, k -> new ArrayList<>()).add(t);
+        int id = nextID.getAndIncrement();
+        if (!addTeacher(new Teacher(id, u, p, n))) {
+            System.out.println("Username already taken.");
+            return;
+        }
 
         System.out.println("Registered teacher '" + n + "' with ID " + id + ".");
     }
@@ -100,15 +168,27 @@ public class Grading {
         System.out.print("Enter your full name: ");
         String n = input.nextLine().trim();
 
-        int id = nextID++;
-        Student s = new Student(id, u, p, n);
-        studentByID.put(id, s);
-        studentByUsername.put(u, s);
-        studentsByName.computeIfAbsent(n, k -> new ArrayList<>()).add(s);
+        int id = nextID.getAndIncrement();
+        if (!addStudent(new Student(id, u, p, n))) {
+            System.out.println("Username already taken.");
+            return;
+        }
 
         System.out.println("Registered student '" + n + "' with ID " + id + ".");
     }
 
+    private void load() {
+        createDataFilesIfNeeded();
+        if (Files.exists(SNAPSHOT_PATH)) {
+            loadSnapshot();
+        } else {
+            loadTeachers();                 // First run: import the text files
+            loadStudents();
+        }
+        replayLog();
+        writeSnapshot();                    // Fold the log in, start a fresh one
+    }
+
     // — LOGIN HANDLERS —
 
     private void loginTeacher() {
@@ -149,14 +229,34 @@ public class Grading {
             System.out.println("2) Assign Grade");
             System.out.println("3) View Subject Grades");
             System.out.println("4) View My Rating");
-            System.out.println("5) Logout");
+            System.out.println("5) Roster Query");
+            System.out.println("6) Clash Check");
+            System.out.println("7) Search People");
+            System.out.println("8) Leaderboards");
+            System.out.println("9) Grade Correlation");
+            System.out.println("10) Import Gradebook (CSV)");
+            System.out.println("11) Export Gradebook (CSV)");
+            System.out.println("12) Logout");
             System.out.print("Choice: ");
             switch (input.nextLine().trim()) {
                 case "1" -> createSubject(t);
                 case "2" -> assignGrade(t);
                 case "3" -> viewSubjectGrades(t);
                 case "4" -> System.out.printf("Your overall rating: %.2f%n", t.overallRating);
-                case "5" -> back = true;
+                case "5" -> rosterQuery();
+                case "6" -> clashCheck();
+                case "7" -> searchPeople();
+                case "8" -> leaderboard();
+                case "9" -> gradeCorrelation();
+                case "10" -> {
+                    System.out.print("CSV file (subject,student_id,grade): ");
+                    importGradebook(Paths.get(input.nextLine().trim()), t);
+                }
+                case "11" -> {
+                    System.out.print("CSV file to write: ");
+                    exportGradebook(Paths.get(input.nextLine().trim()), t);
+                }
+                case "12" -> back = true;
                 default -> System.out.println("Invalid choice.");
             }
         }
@@ -169,11 +269,11 @@ public class Grading {
             System.out.println("Subject already exists.");
             return;
         }
-        int id = nextID++;
-        Subject s = new Subject(id, name, t);
-        subjectByID.put(id, s);
-        subjectByName.put(name, s);
-        t.subjects.add(s);
+        int id = nextID.getAndIncrement();
+        if (!addSubject(new Subject(id, name, t))) {
+            System.out.println("Subject already exists.");
+            return;
+        }
         System.out.println("Subject '" + name + "' created with ID " + id + ".");
     }
 
@@ -185,48 +285,230 @@ public class Grading {
             System.out.println("You do not teach that subject.");
             return;
         }
-        if (s.students.isEmpty()) {
+        IdBitmap enrolled = s.enrolledCopy();
+        if (enrolled.cardinality() == 0) {
             System.out.println("No students enrolled.");
             return;
         }
-        System.out.println("Enrolled students:");
-        s.students.forEach(st -> System.out.println(" - " + st.studentID + ": " + st.name));
+        try (Pager out = pager(null)) {
+            out.println("Enrolled students:");
+            IdBitmap.Cursor ids = enrolled.cursor();
+            while (ids.hasNext() && out.more()) {
+                Student st = studentByID.get(ids.next());
+                out.println(" - " + st.studentID + ": " + st.name);
+            }
+        }
         System.out.print("Student ID to grade: ");
         int sid = Integer.parseInt(input.nextLine().trim());
         Student st = studentByID.get(sid);
-        if (st == null || !s.students.contains(st)) {
+        System.out.print("Grade (0-100): ");
+        int grade = Integer.parseInt(input.nextLine().trim());
+        if (!s.gradeStats.inRange(grade)) {
+            System.out.println("Grade must be between 0 and 100.");
+            return;
+        }
+        if (st == null || !putGrade(s, st, grade)) {
             System.out.println("Invalid student.");
             return;
         }
-        System.out.print("Grade (0-100): ");
-        int grade = Integer.parseInt(input.nextLine().trim());
-        s.studentGrades.put(sid, grade);
-        st.grades.put(s.subjectID, grade);
-        s.classAverage = s.studentGrades.values().stream()
-                                  .mapToInt(Integer::intValue).average().orElse(0.0);
         System.out.println("Assigned grade " + grade + " to " + st.name + ".");
     }
 
     private void viewSubjectGrades(Teacher t) {
-        System.out.print("Subject name: ");
-        String subn = input.nextLine().trim();
+        System.out.print("Subject name (end with '> file' to save it under " + REPORTS_DIR + "): ");
+        String[] answer = redirect(input.nextLine());
+        String subn = answer[0];
         Subject s = subjectByName.get(subn);
         if (s == null || s.teacher != t) {
             System.out.println("You do not teach that subject.");
             return;
         }
-        System.out.println("Grades for '" + subn + "':");
-        if (s.studentGrades.isEmpty()) {
-            System.out.println("  No grades assigned yet.");
+        // A consistent view while others grade, copied so paging doesn't hold the lock
+        GradeColumn grades;
+        List<String> summary = new ArrayList<>();
+        synchronized (s) {
+            grades = s.grades.copy();
+            if (grades.size() > 0) {
+                Stats g = s.gradeStats;
+                summary.add(String.format("Class average: %.2f   median: %d   min: %d   max: %d",
+                                          s.classAverage, g.percentile(50), g.min(), g.max()));
+                summary.add(String.format("25th / 75th / 90th percentile: %d / %d / %d",
+                                          g.percentile(25), g.percentile(75), g.percentile(90)));
+                summary.add("Distribution:");
+                for (int lo = 0; lo <= 100; lo += 10) {
+                    int hi = lo == 90 ? 100 : lo + 9;      // 90-100 shares one row
+                    int n = g.countBetween(lo, hi);
+                    summary.add(String.format("  %3d-%-3d %5d %s", lo, hi, n, "#".repeat((int) (40L * n / g.count))));
+                    if (hi == 100) break;
+                }
+            }
+        }
+        Pager out = pager(answer[1]);
+        if (out == null) return;
+        try (out) {
+            out.println("Grades for '" + subn + "':");
+            if (grades.size() == 0) {
+                out.println("  No grades assigned yet.");
+                return;
+            }
+            for (int i = 0; i < grades.size() && out.more(); i++) {
+                Student st = studentByID.get(grades.key(i));
+                out.println("  " + st.name + " (" + st.studentID + "): " + grades.grade(i));
+            }
+            summary.forEach(out::println);
+        }
+    }
+
+    // "Enrolled in all of these, none of those": one bitmap AND/ANDNOT pass
+    private void rosterQuery() {
+        System.out.print("Enrolled in all of (comma-separated subjects): ");
+        List<Subject> all = subjectsNamed(input.nextLine());
+        System.out.print("But in none of (comma-separated, blank for none): ");
+        List<Subject> none = subjectsNamed(input.nextLine());
+        if (all == null || none == null || all.isEmpty()) {
+            System.out.println("Name at least one existing subject to match.");
+            return;
+        }
+        IdBitmap match = all.get(0).enrolledCopy();
+        for (Subject subj : all.subList(1, all.size())) match = match.and(subj.enrolledCopy());
+        for (Subject subj : none) match = match.andNot(subj.enrolledCopy());
+
+        try (Pager out = pager(null)) {
+            out.println(match.cardinality() + " student(s) match:");
+            IdBitmap.Cursor ids = match.cursor();
+            while (ids.hasNext() && out.more()) {
+                int id = ids.next();
+                Student st = studentByID.get(id);
+                out.println(" - " + id + ": " + (st == null ? "?" : st.name));
+            }
+        }
+    }
+
+    // Students shared with every other subject, most shared first
+    private void clashCheck() {
+        System.out.print("Subject name: ");
+        Subject subj = subjectByName.get(input.nextLine().trim());
+        if (subj == null) {
+            System.out.println("No such subject.");
+            return;
+        }
+        IdBitmap mine = subj.enrolledCopy();
+        List<Map.Entry<Subject, Integer>> clashes = new ArrayList<>();
+        for (Subject other : subjectByID.values()) {
+            if (other == subj) continue;
+            int shared;
+            synchronized (other) {
+                shared = mine.andCardinality(other.enrolled);
+            }
+            if (shared > 0) clashes.add(Map.entry(other, shared));
+        }
+        if (clashes.isEmpty()) {
+            System.out.println("No students shared with any other subject.");
+            return;
+        }
+        clashes.sort((a, b) -> b.getValue() - a.getValue());
+        System.out.println("Students also enrolled in:");
+        clashes.forEach(c -> System.out.printf("  %-20s %d%n", c.getKey().subjectName, c.getValue()));
+    }
+
+    private void searchPeople() {
+        System.out.print("Name (or start of one): ");
+        String q = input.nextLine().trim();
+        List<Integer> hits = nameIndex.search(q, 10, id -> true);
+        if (hits.isEmpty()) {
+            System.out.println("Nobody matches '" + q + "'.");
+            return;
+        }
+        for (int id : hits) {
+            Teacher t = teacherByID.get(id);
+            if (t != null) {
+                System.out.println(" - " + id + ": " + t.name + " (teacher)");
+            } else {
+                System.out.println(" - " + id + ": " + studentByID.get(id).name + " (student)");
+            }
+        }
+    }
+
+    // Top K of one subject, or of every student by average grade
+    private void leaderboard() {
+        System.out.print("Subject name (blank for overall averages): ");
+        String subn = input.nextLine().trim();
+        Subject subj = subn.isEmpty() ? null : subjectByName.get(subn);
+        if (!subn.isEmpty() && subj == null) {
+            System.out.println("No such subject.");
+            return;
+        }
+        System.out.print("How many: ");
+        int k;
+        try {
+            k = Integer.parseInt(input.nextLine().trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid number.");
+            return;
+        }
+
+        List<double[]> top;   // {score, id}
+        if (subj != null) {
+            synchronized (subj) {
+                top = subj.board.top(k);
+            }
         } else {
-            s.studentGrades.forEach((sid, g) -> {
-                Student st = studentByID.get(sid);
-                System.out.printf("  %s (%d): %d%n", st.name, sid, g);
-            });
-            System.out.printf("Class average: %.2f%n", s.classAverage);
+            synchronized (averageBoard) {
+                top = averageBoard.top(k);
+            }
+        }
+        if (top.isEmpty()) {
+            System.out.println("No grades yet.");
+            return;
+        }
+        for (int i = 0; i < top.size(); i++) {
+            Student st = studentByID.get((int) top.get(i)[1]);
+            System.out.printf("  %2d. %-24s %6.2f%n", i + 1, st.name, top.get(i)[0]);
         }
     }
 
+    // Pearson correlation between two subjects' grades, over students with both
+    private void gradeCorrelation() {
+        System.out.print("First subject: ");
+        Subject a = subjectByName.get(input.nextLine().trim());
+        System.out.print("Second subject: ");
+        Subject b = subjectByName.get(input.nextLine().trim());
+        if (a == null || b == null) {
+            System.out.println("No such subject.");
+            return;
+        }
+        GradeColumn x = a.gradesCopy(), y = b.gradesCopy();
+        double[] r = GradeColumn.correlation(x, y);   // {r, students}
+        if (r[1] < 2) {
+            System.out.println("Fewer than two students have grades in both.");
+        } else {
+            System.out.printf("r = %.3f over %d students (means %.2f and %.2f)%n",
+                              r[0], (int) r[1], x.mean(), y.mean());
+        }
+    }
+
+    private static String ordinal(int n) {
+        int tens = n % 100;
+        String suffix = tens >= 11 && tens <= 13 ? "th"
+                      : n % 10 == 1 ? "st" : n % 10 == 2 ? "nd" : n % 10 == 3 ? "rd" : "th";
+        return n + suffix;
+    }
+
+    // Comma-separated subject names → subjects, or null if any is unknown
+    private List<Subject> subjectsNamed(String line) {
+        List<Subject> found = new ArrayList<>();
+        for (String name : line.split(",")) {
+            if (name.isBlank()) continue;
+            Subject subj = subjectByName.get(name.trim());
+            if (subj == null) {
+                System.out.println("No such subject: " + name.trim());
+                return null;
+            }
+            found.add(subj);
+        }
+        return found;
+    }
+
     // — STUDENT MENU & ACTIONS —
 
     private void studentMenu(Student s) {
@@ -258,67 +540,211 @@ public class Grading {
         Subject subj = subjectByName.get(subn);
         if (subj == null) {
             System.out.println("No such subject.");
-        } else if (subj.students.contains(s)) {
+        } else if (!enroll(subj, s)) {
             System.out.println("Already enrolled.");
         } else {
-            subj.students.add(s);
-            s.enrolledSubjects.add(subj);
             System.out.println("Enrolled in '" + subn + "'.");
         }
     }
 
     private void viewMySubjects(Student s) {
-        if (s.enrolledSubjects.isEmpty()) {
+        IdBitmap ids = s.subjectsCopy();
+        if (ids.cardinality() == 0) {
             System.out.println("Not enrolled in any subjects.");
         } else {
             System.out.println("Your subjects:");
-            s.enrolledSubjects.forEach(subj ->
-                System.out.println(" - " + subj.subjectName + " (ID " + subj.subjectID + ")"));
+            ids.forEach(id -> {
+                Subject subj = subjectByID.get(id);
+                System.out.println(" - " + subj.subjectName + " (ID " + subj.subjectID + ")");
+            });
         }
     }
 
     private void viewMyGrades(Student s) {
-        if (s.grades.isEmpty()) {
+        GradeColumn mine = s.gradesCopy();   // Copied: subject locks come before student locks
+        if (mine.size() == 0) {
             System.out.println("No grades yet.");
         } else {
-            System.out.println("Your grades:");
-            s.grades.forEach((sid, g) -> {
-                Subject subj = subjectByID.get(sid);
-                System.out.printf("  %s: %d%n", subj.subjectName, g);
-            });
+            try (Pager out = pager(null)) {
+                out.println("Your grades:");
+                for (int i = 0; i < mine.size() && out.more(); i++) {
+                    Subject subj = subjectByID.get(mine.key(i));
+                    int g = mine.grade(i), rank, of;
+                    synchronized (subj) {
+                        rank = subj.board.rank(g, s.studentID);
+                        of   = subj.board.size();
+                    }
+                    out.println(String.format("  %-20s %3d   rank %d of %d", subj.subjectName, g, rank, of));
+                }
+            }
+            double avg;
+            int rank, of;
+            synchronized (s) {
+                avg = s.average();
+                synchronized (averageBoard) {
+                    rank = averageBoard.rank(avg, s.studentID);
+                    of   = averageBoard.size();
+                }
+            }
+            System.out.printf("Average %.2f: rank %d of %d (%s percentile)%n",
+                              avg, rank, of, ordinal(RankTree.percentile(rank, of)));
         }
     }
 
     private void rateTeacher(Student s) {
-        System.out.print("Teacher ID to rate: ");
-        int tid = Integer.parseInt(input.nextLine().trim());
-        Teacher t = teacherByID.get(tid);
-        if (t == null) {
-            System.out.println("No such teacher.");
-            return;
-        }
+        Teacher t = pickTeacher("Teacher to rate (name or ID): ");
+        if (t == null) return;
         System.out.print("Rating (1-5): ");
         int r = Integer.parseInt(input.nextLine().trim());
-        s.teacherRatings.put(tid, r);
-        t.studentRatings.put(s.studentID, r);
-        t.overallRating = t.studentRatings.values().stream()
-                                .mapToInt(Integer::intValue).average().orElse(0.0);
+        if (!t.ratingStats.inRange(r)) {
+            System.out.println("Rating must be between 1 and 5.");
+            return;
+        }
+        putRating(s, t, r);
         System.out.println("You rated " + t.name + " " + r + "/5.");
     }
 
     private void viewTeacherInfo() {
-        System.out.print("Teacher ID to view: ");
-        int tid = Integer.parseInt(input.nextLine().trim());
-        Teacher t = teacherByID.get(tid);
-        if (t == null) {
-            System.out.println("No such teacher.");
-            return;
+        Teacher t = pickTeacher("Teacher to view (name or ID): ");
+        if (t == null) return;
+        try (Pager out = pager(null)) {
+            out.println("Name: " + t.name);
+            out.println("Username: " + t.username);
+            out.println(String.format("Overall rating: %.2f", t.overallRating));
+            out.println("Subjects taught:");
+            Iterator<Subject> it = t.subjects.iterator();
+            while (it.hasNext() && out.more()) out.println(" - " + it.next().subjectName);
+        }
+    }
+
+    // — MUTATIONS —
+    // Every change to the object graph goes through one of these, both from
+    // the menus and from log replay, and is appended to the change log.
+    // Each is safe to call from any thread; a false return means another
+    // session got there first (name taken, already enrolled, not enrolled).
+
+    private boolean addTeacher(Teacher t) {
+        synchronized (usernameLock) {
+            if (teacherByUsername.containsKey(t.username) || studentByUsername.containsKey(t.username)) {
+                return false;
+            }
+            teacherByUsername.put(t.username, t);
+        }
+        teacherByID.put(t.teacherID, t);
+        teachersByName.computeIfAbsent(t.name, k -> new CopyOnWriteArrayList<>()).add(t);
+        nameIndex.add(t.teacherID, t.name);
+        nextID.accumulateAndGet(t.teacherID + 1, Math::max);
+        logChange(OP_TEACHER, t.teacherID, t.username, t.password, t.name);
+        return true;
+    }
+
+    private boolean addStudent(Student s) {
+        synchronized (usernameLock) {
+            if (studentByUsername.containsKey(s.username) || teacherByUsername.containsKey(s.username)) {
+                return false;
+            }
+            studentByUsername.put(s.username, s);
+        }
+        studentByID.put(s.studentID, s);
+        studentsByName.computeIfAbsent(s.name, k -> new CopyOnWriteArrayList<>()).add(s);
+        nameIndex.add(s.studentID, s.name);
+        nextID.accumulateAndGet(s.studentID + 1, Math::max);
+        logChange(OP_STUDENT, s.studentID, s.username, s.password, s.name);
+        return true;
+    }
+
+    private boolean addSubject(Subject s) {
+        if (subjectByName.putIfAbsent(s.subjectName, s) != null) {
+            return false;
+        }
+        subjectByID.put(s.subjectID, s);
+        s.teacher.subjects.add(s);
+        nextID.accumulateAndGet(s.subjectID + 1, Math::max);
+        logChange(OP_SUBJECT, s.subjectID, s.subjectName, s.teacher.teacherID);
+        return true;
+    }
+
+    private boolean enroll(Subject subj, Student s) {
+        synchronized (subj) {
+            if (!subj.enrolled.add(s.studentID)) return false;
+            synchronized (s) {
+                s.subjectIDs.add(subj.subjectID);
+            }
+            logChange(OP_ENROLL, subj.subjectID, s.studentID);   // In subject order
+        }
+        return true;
+    }
+
+    // Both sides of the grade change under the subject's lock, so no reader
+    // holding it sees one without the other
+    private boolean putGrade(Subject s, Student st, int grade) {
+        synchronized (s) {
+            if (!s.enrolled.contains(st.studentID)) return false;
+            setGrade(s, st, grade, true);
+            s.classAverage = s.gradeStats.average();
+            logChange(OP_GRADE, s.subjectID, st.studentID, grade);
+        }
+        return true;
+    }
+
+    // Everything but the class average and the log, and the subject's board
+    // only if asked (a bulk import rebuilds it once instead); caller holds s's lock
+    private static void setGrade(Subject s, Student st, int grade, boolean board) {
+        int old = s.grades.put(st.studentID, grade);
+        Integer previous = old < 0 ? null : old;
+        s.gradeStats.replace(previous, grade);
+        if (board) {
+            if (previous != null) s.board.remove(previous, st.studentID);
+            s.board.insert(grade, st.studentID);
+        }
+        synchronized (st) {
+            double before = st.average();
+            st.grades.put(s.subjectID, grade);
+            st.gradeSum += grade - (previous == null ? 0 : previous);
+            if (previous == null) st.gradeCount++;
+            synchronized (averageBoard) {
+                if (st.gradeCount > 1 || previous != null) averageBoard.remove(before, st.studentID);
+                averageBoard.insert(st.average(), st.studentID);
+            }
+        }
+    }
+
+    private void putRating(Student s, Teacher t, int r) {
+        synchronized (t) {
+            s.teacherRatings.put(t.teacherID, r);
+            t.ratingStats.replace(t.studentRatings.put(s.studentID, r), r);
+            t.overallRating = t.ratingStats.average();
+            logChange(OP_RATING, s.studentID, t.teacherID, r);
+        }
+    }
+
+    // An ID picks directly; anything else is a name search, with a choice
+    // offered when more than one teacher comes back
+    private Teacher pickTeacher(String prompt) {
+        System.out.print(prompt);
+        String q = input.nextLine().trim();
+        if (!q.isEmpty() && q.chars().allMatch(Character::isDigit)) {
+            Teacher t = teacherByID.get(Integer.parseInt(q));
+            if (t == null) System.out.println("No such teacher.");
+            return t;
+        }
+        List<Integer> hits = nameIndex.search(q, 5, teacherByID::containsKey);
+        if (hits.isEmpty()) {
+            System.out.println("No teacher matches '" + q + "'.");
+            return null;
+        }
+        if (hits.size() == 1) return teacherByID.get(hits.get(0));
+        for (int i = 0; i < hits.size(); i++) {
+            System.out.println("  " + (i + 1) + ") " + teacherByID.get(hits.get(i)).name
+                               + " (ID " + hits.get(i) + ")");
+        }
+        System.out.print("Which one? ");
+        try {
+            return teacherByID.get(hits.get(Integer.parseInt(input.nextLine().trim()) - 1));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            System.out.println("Invalid choice.");
+            return null;
         }
-        System.out.println("Name: " + t.name);
-        System.out.println("Username: " + t.username);
-        System.out.printf("Overall rating: %.2f%n", t.overallRating);
-        System.out.println("Subjects taught:");
-        t.subjects.forEach(subj -> System.out.println(" - " + subj.subjectName));
     }
 
     // — FILE I/O —
@@ -339,12 +765,7 @@ public class Grading {
             while ((line = reader.readLine()) != null) {
                 String[] p = line.split(",");
                 if (p.length != 4) continue;
-                int id = Integer.parseInt(p[0]);
-                Teacher t = new Teacher(id, p[1], p[2], p[3]);
-                teacherByID.put(id, t);
-                teacherByUsername.put(p[1], t);
-                teachersByName.computeIfAbsent(t.name, k -> new ArrayList<>()).add(t);
-                nextID = Math.max(nextID, id + 1);
+                addTeacher(new Teacher(Integer.parseInt(p[0]), p[1], p[2], p[3]));
             }
         } catch (IOException e) {
             System.out.println("Error loading teachers: " + e.getMessage());
@@ -357,12 +778,7 @@ public class Grading {
             while ((line = reader.readLine()) != null) {
                 String[] p = line.split(",");
                 if (p.length != 4) continue;
-                int id = Integer.parseInt(p[0]);
-                Student s = new Student(id, p[1], p[2], p[3]);
-                studentByID.put(id, s);
-                studentByUsername.put(p[1], s);
-                studentsByName.computeIfAbsent(s.name, k -> new ArrayList<>()).add(s);
-                nextID = Math.max(nextID, id + 1);
+                addStudent(new Student(Integer.parseInt(p[0]), p[1], p[2], p[3]));
             }
         } catch (IOException e) {
             System.out.println("Error loading students: " + e.getMessage());
@@ -391,53 +807,1703 @@ public class Grading {
         }
     }
 
-    // — DATA CLASSES —
+    // — BINARY SNAPSHOT + CHANGE LOG —
+    // grading.dat is the whole object graph as of the last start or exit;
+    // grading.log holds every change since, one record per mutation.
+    // Both use DataOutputStream encoding: ints plus modified-UTF-8 strings.
+    //
+    // Snapshot: magic, nextID, then count-prefixed sections
+    //   teachers  id, username, password, name
+    //   students  id, username, password, name
+    //   subjects  id, name, teacherID, enrolled ids, (studentID, grade) pairs
+    //   ratings   studentID, teacherID, rating
 
-    private static class Teacher {
-        int teacherID;
-        String username, password, name;
-        List<Subject> subjects = new ArrayList<>();
-        Map<Integer,Integer> studentRatings = new HashMap<>();
-        double overallRating;
+    private static final int SNAPSHOT_MAGIC = 0x47524431;   // "GRD1"
 
-        Teacher(int teacherID, String username, String password, String name) {
-            this.teacherID = teacherID;
-            this.username  = username;
-            this.password  = password;
-            this.name      = name;
-            this.overallRating = 0.0;
+    private static final byte OP_TEACHER = 1;   // id, username, password, name
+    private static final byte OP_STUDENT = 2;   // id, username, password, name
+    private static final byte OP_SUBJECT = 3;   // id, name, teacherID
+    private static final byte OP_ENROLL  = 4;   // subjectID, studentID
+    private static final byte OP_GRADE   = 5;   // subjectID, studentID, grade
+    private static final byte OP_RATING  = 6;   // studentID, teacherID, rating
+
+    private void loadSnapshot() {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(SNAPSHOT_PATH), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                System.out.println("Error loading snapshot: not a grading snapshot");
+                return;
+            }
+            int savedNextID = in.readInt();
+            for (int i = in.readInt(); i > 0; i--) {
+                addTeacher(new Teacher(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                addStudent(new Student(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF()));
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                Subject subj = new Subject(in.readInt(), in.readUTF(), teacherByID.get(in.readInt()));
+                addSubject(subj);
+                for (int n = in.readInt(); n > 0; n--) {
+                    enroll(subj, studentByID.get(in.readInt()));
+                }
+                for (int n = in.readInt(); n > 0; n--) {
+                    putGrade(subj, studentByID.get(in.readInt()), in.readInt());
+                }
+            }
+            for (int i = in.readInt(); i > 0; i--) {
+                Student s = studentByID.get(in.readInt());
+                putRating(s, teacherByID.get(in.readInt()), in.readInt());
+            }
+            nextID.accumulateAndGet(savedNextID, Math::max);
+        } catch (IOException e) {
+            System.out.println("Error loading snapshot: " + e.getMessage());
         }
     }
 
-    private static class Subject {
-        int subjectID;
-        String subjectName;
-        Teacher teacher;
-        List<Student> students = new ArrayList<>();
-        Map<Integer,Integer> studentGrades = new HashMap<>();
-        double classAverage, classRating;
+    // Safe while other sessions keep working: each section is counted from a
+    // copy, and each subject (or teacher's ratings) is written under its lock
+    private void writeSnapshot() {
+        List<Teacher> teachers = new ArrayList<>(teacherByID.values());
+        List<Student> students = new ArrayList<>(studentByID.values());
+        List<Subject> subjects = new ArrayList<>(subjectByID.values());
+        Path tmp = SNAPSHOT_PATH.resolveSibling("grading.dat.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(nextID.get());
+            out.writeInt(teachers.size());
+            for (Teacher t : teachers) {
+                out.writeInt(t.teacherID);
+                out.writeUTF(t.username);
+                out.writeUTF(t.password);
+                out.writeUTF(t.name);
+            }
+            out.writeInt(students.size());
+            for (Student s : students) {
+                out.writeInt(s.studentID);
+                out.writeUTF(s.username);
+                out.writeUTF(s.password);
+                out.writeUTF(s.name);
+            }
+            out.writeInt(subjects.size());
+            for (Subject subj : subjects) {
+                synchronized (subj) {
+                    out.writeInt(subj.subjectID);
+                    out.writeUTF(subj.subjectName);
+                    out.writeInt(subj.teacher.teacherID);
+                    out.writeInt(subj.enrolled.cardinality());
+                    IdBitmap.Cursor ids = subj.enrolled.cursor();
+                    while (ids.hasNext()) out.writeInt(ids.next());
+                    out.writeInt(subj.grades.size());
+                    for (int i = 0; i < subj.grades.size(); i++) {
+                        out.writeInt(subj.grades.key(i));
+                        out.writeInt(subj.grades.grade(i));
+                    }
+                }
+            }
+            List<int[]> ratings = new ArrayList<>();   // studentID, teacherID, rating
+            for (Teacher t : teachers) {
+                synchronized (t) {
+                    t.studentRatings.forEach((sid, r) -> ratings.add(new int[] { sid, t.teacherID, r }));
+                }
+            }
+            out.writeInt(ratings.size());
+            for (int[] r : ratings) {
+                out.writeInt(r[0]);
+                out.writeInt(r[1]);
+                out.writeInt(r[2]);
+            }
+        } catch (IOException e) {
+            System.out.println("Error saving snapshot: " + e.getMessage());
+            return;   // Keep the old snapshot and log
+        }
+        try {
+            Files.move(tmp, SNAPSHOT_PATH, StandardCopyOption.REPLACE_EXISTING,
+                                           StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(LOG_PATH);   // Everything in it is in the snapshot now
+        } catch (IOException e) {
+            System.out.println("Error saving snapshot: " + e.getMessage());
+        }
+    }
 
-        Subject(int subjectID, String subjectName, Teacher teacher) {
-            this.subjectID   = subjectID;
-            this.subjectName = subjectName;
-            this.teacher     = teacher;
-            this.classAverage = 0.0;
-            this.classRating  = 0.0;
+    private void replayLog() {
+        if (!Files.exists(LOG_PATH)) return;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(LOG_PATH), 1 << 16))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;   // Clean end of log
+                }
+                switch (op) {
+                    case OP_TEACHER -> addTeacher(new Teacher(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF()));
+                    case OP_STUDENT -> addStudent(new Student(in.readInt(), in.readUTF(), in.readUTF(), in.readUTF()));
+                    case OP_SUBJECT -> addSubject(new Subject(in.readInt(), in.readUTF(), teacherByID.get(in.readInt())));
+                    case OP_ENROLL  -> enroll(subjectByID.get(in.readInt()), studentByID.get(in.readInt()));
+                    case OP_GRADE   -> putGrade(subjectByID.get(in.readInt()), studentByID.get(in.readInt()), in.readInt());
+                    case OP_RATING  -> putRating(studentByID.get(in.readInt()), teacherByID.get(in.readInt()), in.readInt());
+                    default -> throw new IOException("unknown record type " + op);
+                }
+            }
+        } catch (EOFException e) {
+            // Torn last record from a crash mid-write; everything before it is applied
+        } catch (IOException e) {
+            System.out.println("Error replaying change log: " + e.getMessage());
         }
     }
 
-    private static class Student {
-        int studentID;
-        String username, password, name;
-        List<Subject> enrolledSubjects = new ArrayList<>();
-        Map<Integer,Integer> teacherRatings = new HashMap<>();
-        Map<Integer,Integer> grades = new HashMap<>();
+    private synchronized void openLog() {
+        try {
+            changeLog = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(LOG_PATH,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        } catch (IOException e) {
+            System.out.println("Error opening change log: " + e.getMessage());
+        }
+    }
 
-        Student(int studentID, String username, String password, String name) {
-            this.studentID = studentID;
-            this.username  = username;
-            this.password  = password;
-            this.name      = name;
+    private synchronized void closeLog() {
+        if (changeLog == null) return;
+        try {
+            changeLog.close();
+        } catch (IOException e) {
+            System.out.println("Error closing change log: " + e.getMessage());
+        }
+        changeLog = null;
+    }
+
+    // Appends one record and pushes it to the OS, so a crashed process loses nothing.
+    // Callers may hold a subject or teacher lock; this lock is always taken last.
+    private synchronized void logChange(byte op, Object... fields) {
+        logBuffered(op, fields);
+        flushLog();
+    }
+
+    // As logChange, but left in the buffer until the next flushLog (bulk imports)
+    private synchronized void logBuffered(byte op, Object... fields) {
+        if (changeLog == null) return;
+        try {
+            changeLog.writeByte(op);
+            for (Object f : fields) {
+                if (f instanceof Integer i) changeLog.writeInt(i);
+                else changeLog.writeUTF((String) f);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing change log: " + e.getMessage());
+        }
+    }
+
+    private synchronized void flushLog() {
+        if (changeLog == null) return;
+        try {
+            changeLog.flush();
+        } catch (IOException e) {
+            System.out.println("Error writing change log: " + e.getMessage());
+        }
+    }
+
+    // — REPORT CARDS —
+    // Students are sorted by ID and split by fork/join into shards of
+    // REPORT_SHARD; each shard renders its cards one at a time into a single
+    // reused buffer and streams them to its own part-NNNNN.txt through a
+    // FileChannel, so memory use is per shard, not per document set.
+
+    private static final int REPORT_SHARD = 1024;
+
+    private void writeReports(Path dir) {
+        int[] ids = studentByID.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        long start = System.nanoTime();
+        long bytes;
+        try {
+            Files.createDirectories(dir);
+            bytes = ForkJoinPool.commonPool().invoke(new ReportTask(ids, 0, ids.length, dir));
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Error writing reports: " + e.getMessage());
+            return;
+        }
+        System.out.printf("Wrote %d report cards (%d shards, %.1f MB) to %s in %.2f s%n",
+                ids.length, (ids.length + REPORT_SHARD - 1) / REPORT_SHARD, bytes / 1e6, dir,
+                (System.nanoTime() - start) / 1e9);
+    }
+
+    private class ReportTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+        private final int[] ids;
+        private final int from, to;
+        private final Path dir;
+
+        ReportTask(int[] ids, int from, int to, Path dir) {
+            this.ids  = ids;
+            this.from = from;
+            this.to   = to;
+            this.dir  = dir;
+        }
+
+        // Bytes written by this range of shards
+        @Override
+        protected Long compute() {
+            if (to - from > REPORT_SHARD) {
+                int shards = (to - from + REPORT_SHARD - 1) / REPORT_SHARD;
+                int mid = from + shards / 2 * REPORT_SHARD;   // On a shard edge
+                ReportTask left = new ReportTask(ids, from, mid, dir);
+                left.fork();
+                long right = new ReportTask(ids, mid, to, dir).compute();
+                return left.join() + right;
+            }
+            Path part = dir.resolve(String.format("part-%05d.txt", from / REPORT_SHARD));
+            try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+                CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+                StringBuilder card = new StringBuilder(1024);
+                long written = 0;
+                for (int i = from; i < to; i++) {
+                    card.setLength(0);
+                    renderReport(studentByID.get(ids[i]), card);
+                    CharBuffer chars = CharBuffer.wrap(card);
+                    while (encoder.encode(chars, buf, true) == CoderResult.OVERFLOW) {
+                        written += drain(out, buf);
+                    }
+                    encoder.reset();
+                }
+                return written + drain(out, buf);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private long drain(FileChannel out, ByteBuffer buf) throws IOException {
+            buf.flip();
+            long n = buf.remaining();
+            while (buf.hasRemaining()) out.write(buf);
+            buf.clear();
+            return n;
+        }
+    }
+
+    // Plain appends rather than String.format: this runs once per student
+    // per subject, and parsing a format string each time dominated the run
+    private static void renderReport(Student s, StringBuilder out) {
+        out.append("REPORT CARD: ").append(s.name).append(" (ID ").append(s.studentID).append(")\n");
+        GradeColumn mine = s.gradesCopy();
+        mine.sortByKey();
+        if (mine.size() == 0) {
+            out.append("  No grades this term.\n\n");
+            return;
+        }
+        out.append("  Subject              Grade Class avg  Teacher (rating)\n");
+        for (int i = 0; i < mine.size(); i++) {
+            Subject subj = subjectByID.get(mine.key(i));
+            out.append("  ").append(subj.subjectName);
+            pad(out, 20 - subj.subjectName.length() + 1);
+            padLeft(out, Integer.toString(mine.grade(i)), 5);
+            out.append(' ');
+            padLeft(out, twoPlaces(subj.classAverage), 9);
+            out.append("  ").append(subj.teacher.name)
+               .append(" (").append(twoPlaces(subj.teacher.overallRating)).append(")\n");
+        }
+        double avg;
+        int rank, of;
+        synchronized (s) {
+            avg = s.average();
+            synchronized (averageBoard) {
+                rank = averageBoard.rank(avg, s.studentID);
+                of   = averageBoard.size();
+            }
+        }
+        out.append("  Average ").append(twoPlaces(avg))
+           .append(", rank ").append(rank).append(" of ").append(of).append("\n\n");
+    }
+
+    private static String twoPlaces(double x) {
+        long cents = Math.round(x * 100);
+        long frac = Math.abs(cents % 100);
+        return (cents < 0 && cents > -100 ? "-" : "") + cents / 100 + (frac < 10 ? ".0" : ".") + frac;
+    }
+
+    private static void pad(StringBuilder out, int spaces) {
+        for (int i = 0; i < spaces; i++) out.append(' ');
+    }
+
+    private static void padLeft(StringBuilder out, String text, int width) {
+        pad(out, width - text.length());
+        out.append(text);
+    }
+
+    // — CSV GRADEBOOK —
+    // Rows are  subject,student_id,grade  with the grade left blank to only
+    // enroll; a subject name may be double-quoted. Import reads IMPORT_WINDOW
+    // bytes at a time, cut on a line break, so memory is bounded by the
+    // window rather than the file. Fork/join parses each window's chunks into
+    // per-subject batches, checked against subjectByName and studentByID;
+    // each batch is then applied under one hold of its subject's lock, with
+    // one class-average recomputation and one log flush.
+
+    private static final int IMPORT_WINDOW = 8 << 20;
+    private static final int IMPORT_CHUNK  = 1 << 20;
+    private static final int IMPORT_ERRORS_SHOWN = 10;
+
+    // owner may only touch their own subjects; null (command line) may touch any
+    private void importGradebook(Path file, Teacher owner) {
+        long start = System.nanoTime();
+        int[] totals = new int[4];   // Rows, enrollments, grades, rejected
+        List<String> errors = new ArrayList<>();
+        try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+            byte[] window = new byte[IMPORT_WINDOW];
+            int filled = 0, line = 1;
+            boolean first = true, eof = false;
+            while (!eof || filled > 0) {
+                while (!eof && filled < window.length) {
+                    int n = in.read(ByteBuffer.wrap(window, filled, window.length - filled));
+                    if (n < 0) eof = true;
+                    else filled += n;
+                }
+                int end = filled;
+                if (!eof) {
+                    while (end > 0 && window[end - 1] != '\n') end--;
+                    if (end == 0) throw new IOException("line " + line + " is over " + IMPORT_WINDOW + " bytes");
+                }
+                int from = 0;
+                if (first) {
+                    first = false;
+                    if (startsWithIgnoreCase(window, end, "subject,")) {   // Header
+                        from = lineEnd(window, 0, end);
+                        line++;
+                    }
+                }
+                line += importWindow(window, from, end, line, owner, totals, errors);
+                System.arraycopy(window, end, window, 0, filled - end);
+                filled -= end;
+            }
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Error importing " + file + ": " + e.getMessage());
+        }
+        System.out.printf("Read %d rows in %.2f s: %d enrollments, %d grades, %d rejected%n",
+                totals[0], (System.nanoTime() - start) / 1e9, totals[1], totals[2], totals[3]);
+        errors.forEach(e -> System.out.println("  " + e));
+        if (totals[3] > errors.size()) {
+            System.out.println("  ... and " + (totals[3] - errors.size()) + " more");
+        }
+    }
+
+    // Parses buf[from, to) in parallel chunks, then applies it; returns its line count
+    private int importWindow(byte[] buf, int from, int to, int firstLine, Teacher owner,
+                             int[] totals, List<String> errors) {
+        List<ParseTask> tasks = new ArrayList<>();
+        for (int p = from; p < to; ) {
+            int q = Math.min(to, p + IMPORT_CHUNK);
+            if (q < to) q = lineEnd(buf, q - 1, to);
+            tasks.add(new ParseTask(buf, p, q, owner));
+            p = q;
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        // Chunks merge in file order, so the last row for a student wins
+        Map<Subject, GradeColumn> batches = new LinkedHashMap<>();
+        int line = firstLine;
+        for (ParseTask t : tasks) {
+            t.batches.forEach((s, rows) -> {
+                GradeColumn into = batches.computeIfAbsent(s, k -> new GradeColumn());
+                for (int i = 0; i < rows.size(); i++) mergeRow(into, rows.key(i), rows.grade(i));
+            });
+            for (int i = 0; i < t.errorLines.size() && errors.size() < IMPORT_ERRORS_SHOWN; i++) {
+                errors.add("line " + (line + t.errorLines.get(i)) + ": " + t.errors.get(i));
+            }
+            totals[0] += t.rows;
+            totals[3] += t.rejected;
+            line += t.lines;
+        }
+        batches.forEach((s, rows) -> applyBatch(s, rows, totals));
+        return line - firstLine;
+    }
+
+    // A blank grade (-1) enrolls, and never clears a grade given earlier in the file
+    private static void mergeRow(GradeColumn into, int studentID, int grade) {
+        if (grade >= 0 || into.get(studentID) < 0) into.put(studentID, grade);
+    }
+
+    private void applyBatch(Subject s, GradeColumn rows, int[] totals) {
+        synchronized (s) {
+            boolean rebuild = rows.size() > s.grades.size() / 8;   // Cheaper than row-by-row
+            for (int i = 0; i < rows.size(); i++) {
+                Student st = studentByID.get(rows.key(i));
+                if (s.enrolled.add(st.studentID)) {
+                    synchronized (st) {
+                        st.subjectIDs.add(s.subjectID);
+                    }
+                    logBuffered(OP_ENROLL, s.subjectID, st.studentID);
+                    totals[1]++;
+                }
+                int grade = rows.grade(i);
+                if (grade >= 0) {
+                    setGrade(s, st, grade, !rebuild);
+                    logBuffered(OP_GRADE, s.subjectID, st.studentID, grade);
+                    totals[2]++;
+                }
+            }
+            if (rebuild) s.rebuildBoard();
+            s.classAverage = s.gradeStats.average();
+            flushLog();
+        }
+    }
+
+    // Index just past the line break at or after p, or to
+    private static int lineEnd(byte[] buf, int p, int to) {
+        while (p < to && buf[p] != '\n') p++;
+        return Math.min(p + 1, to);
+    }
+
+    private static boolean startsWithIgnoreCase(byte[] buf, int to, String prefix) {
+        if (to < prefix.length()) return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (Character.toLowerCase(buf[i]) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    // Parses one chunk of lines straight from the bytes; the results are read
+    // by importWindow after invokeAll returns
+    private class ParseTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final byte[] buf;
+        private final int from, to;
+        private final Teacher owner;
+
+        final Map<Subject, GradeColumn> batches = new LinkedHashMap<>();
+        final List<Integer> errorLines = new ArrayList<>();   // 0-based within the chunk
+        final List<String> errors = new ArrayList<>();
+        int lines, rows, rejected;
+
+        // Rows tend to come grouped by subject: the last unquoted name looked
+        // up and what it named, set together, and the batch last added to
+        private byte[] lastName = new byte[0];
+        private Subject lastNamed;
+        private Subject lastSubject;
+        private GradeColumn lastBatch;
+
+        ParseTask(byte[] buf, int from, int to, Teacher owner) {
+            this.buf   = buf;
+            this.from  = from;
+            this.to    = to;
+            this.owner = owner;
+        }
+
+        @Override
+        protected void compute() {
+            for (int p = from; p < to; lines++) {
+                int next = lineEnd(buf, p, to);
+                int end = next;
+                if (end > p && buf[end - 1] == '\n') end--;
+                if (end > p && buf[end - 1] == '\r') end--;
+                String problem = parseRow(p, end);
+                if (problem != null) {
+                    rejected++;
+                    if (errors.size() < IMPORT_ERRORS_SHOWN) {
+                        errorLines.add(lines);
+                        errors.add(problem);
+                    }
+                }
+                p = next;
+            }
+        }
+
+        // Adds the row to its subject's batch, or says what is wrong with it
+        private String parseRow(int p, int end) {
+            int a = skipSpaces(p, end);
+            if (a == end) return null;   // Blank line
+            rows++;
+
+            int comma;
+            Subject subj;
+            String name = null;
+            if (buf[a] == '"') {
+                int q = a + 1;
+                while (q < end && !(buf[q] == '"' && (q + 1 == end || buf[q + 1] != '"'))) {
+                    q += buf[q] == '"' ? 2 : 1;
+                }
+                if (q == end) return "unclosed quote";
+                name = new String(buf, a + 1, q - a - 1, StandardCharsets.UTF_8).replace("\"\"", "\"");
+                subj = subjectByName.get(name);
+                comma = indexOf(',', q + 1, end);
+            } else {
+                comma = indexOf(',', a, end);
+                int b = trimEnd(a, comma);
+                if (lastNamed != null && Arrays.equals(buf, a, b, lastName, 0, lastName.length)) {
+                    subj = lastNamed;
+                } else {
+                    name = new String(buf, a, b - a, StandardCharsets.UTF_8);
+                    subj = subjectByName.get(name);
+                    if (subj != null) {
+                        lastName = Arrays.copyOfRange(buf, a, b);
+                        lastNamed = subj;
+                    }
+                }
+            }
+            if (comma == end) return "expected subject,student_id,grade";
+            if (subj == null) return "unknown subject '" + name + "'";
+            if (owner != null && subj.teacher != owner) return "'" + subj.subjectName + "' is not your subject";
+
+            int comma2 = indexOf(',', comma + 1, end);
+            int id = parseNumber(comma + 1, comma2);
+            if (id < 0) return "bad student ID";
+            if (!studentByID.containsKey(id)) return "no student with ID " + id;
+            int grade = comma2 == end ? -1 : parseNumber(comma2 + 1, end);
+            if (grade < -1 || grade > 100) return "grade must be 0-100";
+
+            if (subj != lastSubject) {
+                lastSubject = subj;
+                lastBatch = batches.computeIfAbsent(subj, k -> new GradeColumn());
+            }
+            mergeRow(lastBatch, id, grade);
+            return null;
+        }
+
+        // Digits between optional spaces: the value, -1 if blank, -2 if not a number
+        private int parseNumber(int a, int b) {
+            a = skipSpaces(a, b);
+            b = trimEnd(a, b);
+            if (a == b) return -1;
+            if (b - a > 9) return -2;
+            int n = 0;
+            for (int i = a; i < b; i++) {
+                if (buf[i] < '0' || buf[i] > '9') return -2;
+                n = n * 10 + (buf[i] - '0');
+            }
+            return n;
+        }
+
+        private int indexOf(char c, int a, int b) {
+            while (a < b && buf[a] != c) a++;
+            return a;
+        }
+
+        private int skipSpaces(int a, int b) {
+            while (a < b && (buf[a] == ' ' || buf[a] == '\t')) a++;
+            return a;
+        }
+
+        private int trimEnd(int a, int b) {
+            while (b > a && (buf[b - 1] == ' ' || buf[b - 1] == '\t')) b--;
+            return b;
+        }
+    }
+
+    // Every enrollment as a row, the grade blank where none is set yet.
+    // Subjects go in ID order, each copied under its lock and written out
+    // before the next is copied.
+    private void exportGradebook(Path file, Teacher owner) {
+        List<Subject> subjects = new ArrayList<>(owner == null ? subjectByID.values() : owner.subjects);
+        subjects.sort(Comparator.comparingInt(s -> s.subjectID));
+        long start = System.nanoTime();
+        long rows = 0;
+        try (BufferedWriter out = new BufferedWriter(Files.newBufferedWriter(file), 1 << 16)) {
+            out.write("subject,student_id,grade\n");
+            StringBuilder line = new StringBuilder(64);
+            for (Subject s : subjects) {
+                IdBitmap enrolled;
+                GradeColumn grades;
+                synchronized (s) {
+                    enrolled = s.enrolled.copy();
+                    grades = s.grades.copy();
+                }
+                String name = s.subjectName.contains(",") || s.subjectName.startsWith("\"")
+                        ? "\"" + s.subjectName.replace("\"", "\"\"") + "\""
+                        : s.subjectName;
+                IdBitmap.Cursor ids = enrolled.cursor();
+                while (ids.hasNext()) {
+                    int id = ids.next();
+                    int grade = grades.get(id);
+                    line.setLength(0);
+                    line.append(name).append(',').append(id).append(',');
+                    if (grade >= 0) line.append(grade);
+                    out.append(line).append('\n');
+                    rows++;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error exporting " + file + ": " + e.getMessage());
+            return;
+        }
+        System.out.printf("Wrote %d rows from %d subjects to %s in %.2f s%n",
+                rows, subjects.size(), file, (System.nanoTime() - start) / 1e9);
+    }
+
+    // — PAGED OUTPUT —
+    // Listings that can run to thousands of rows go through a Pager rather
+    // than a printf per row: lines are encoded into one 64 KB buffer and
+    // written a buffer at a time to any byte channel, be it the console, a
+    // file or a socket. On the console it stops every PAGE_LINES rows to ask
+    // before going on, and callers only format a row once more() allows it.
+
+    private static final int PAGE_LINES = 40;
+
+    // Targets come straight from menu input, so files stay under REPORTS_DIR
+    // and sockets are off unless the operator runs with
+    // -Dgrading.socketTargets=true
+    private static final boolean SOCKET_TARGETS = Boolean.getBoolean("grading.socketTargets");
+
+    // The console for null; otherwise a file under REPORTS_DIR or, if
+    // enabled, a host:port socket. Null if it can't or may not be opened
+    private Pager pager(String target) {
+        if (target == null) return new Pager(Channels.newChannel(System.out), false, input);
+        try {
+            if (target.matches("[\\w.-]+:\\d+")) {
+                if (!SOCKET_TARGETS) {
+                    System.out.println("Sending to " + target + " is disabled (run with -Dgrading.socketTargets=true).");
+                    return null;
+                }
+                int colon = target.lastIndexOf(':');
+                return new Pager(SocketChannel.open(new InetSocketAddress(target.substring(0, colon),
+                        Integer.parseInt(target.substring(colon + 1)))), true, null);
+            }
+            Path file = REPORTS_DIR.resolve(target).normalize();
+            if (!file.startsWith(REPORTS_DIR) || file.equals(REPORTS_DIR)) {
+                System.out.println("Listings can only be saved under " + REPORTS_DIR + ".");
+                return null;
+            }
+            Files.createDirectories(file.getParent());
+            return new Pager(FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), true, null);
+        } catch (IOException | IllegalArgumentException e) {   // Bad path, port or host
+            System.out.println("Error opening " + target + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // "answer > target" → {answer, target}; target is null without a '>'.
+    // The last '>' splits, so an answer may contain one itself.
+    private static String[] redirect(String line) {
+        int gt = line.lastIndexOf('>');
+        if (gt < 0) return new String[] { line.trim(), null };
+        return new String[] { line.substring(0, gt).trim(), line.substring(gt + 1).trim() };
+    }
+
+    private static class Pager implements AutoCloseable {
+        private final WritableByteChannel out;
+        private final boolean owned;    // Files and sockets close with the pager; the console doesn't
+        private final Scanner input;    // Null: never pause
+        private final ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private int onPage;
+        private boolean stopped;
+
+        Pager(WritableByteChannel out, boolean owned, Scanner input) {
+            this.out   = out;
+            this.owned = owned;
+            this.input = input;
+        }
+
+        // Whether to produce another row: false once the reader says stop or
+        // the target fails. Pauses first when a console page is full.
+        boolean more() {
+            if (!stopped && input != null && onPage >= PAGE_LINES) {
+                put("-- Enter for more, q to stop -- ");
+                flush();
+                stopped = input.nextLine().trim().equalsIgnoreCase("q");
+                onPage = 0;
+            }
+            return !stopped;
+        }
+
+        void println(CharSequence line) {
+            put(line);
+            put("\n");
+            onPage++;
+        }
+
+        void flush() {
+            buf.flip();
+            try {
+                while (buf.hasRemaining()) out.write(buf);
+            } catch (IOException e) {
+                if (!stopped) System.out.println("Error writing output: " + e.getMessage());
+                stopped = true;
+            }
+            buf.clear();
+        }
+
+        @Override
+        public void close() {
+            flush();
+            if (!owned) return;
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.out.println("Error closing output: " + e.getMessage());
+            }
+        }
+
+        private void put(CharSequence text) {
+            CharBuffer chars = CharBuffer.wrap(text);
+            while (encoder.encode(chars, buf, true) == CoderResult.OVERFLOW) flush();
+            encoder.reset();
+        }
+    }
+
+    // — DATA CLASSES —
+
+    private static class Teacher {
+        int teacherID;
+        String username, password, name;
+        List<Subject> subjects = new CopyOnWriteArrayList<>();
+        Map<Integer,Integer> studentRatings = new HashMap<>();   // Guarded by this Teacher
+        Stats ratingStats = new Stats(1, 5);       // Kept in step with studentRatings
+        volatile double overallRating;
+
+        Teacher(int teacherID, String username, String password, String name) {
+            this.teacherID = teacherID;
+            this.username  = username;
+            this.password  = password;
+            this.name      = name;
+            this.overallRating = 0.0;
+        }
+    }
+
+    private static class Subject {
+        int subjectID;
+        String subjectName;
+        Teacher teacher;
+        // Guarded by this Subject's monitor
+        IdBitmap enrolled = new IdBitmap();        // Student IDs
+        GradeColumn grades = new GradeColumn();    // Student ID → grade
+        Stats gradeStats = new Stats(0, 100);      // Kept in step with grades
+        RankTree board = new RankTree();           // Likewise, ordered by grade
+        volatile double classAverage, classRating;
+
+        Subject(int subjectID, String subjectName, Teacher teacher) {
+            this.subjectID   = subjectID;
+            this.subjectName = subjectName;
+            this.teacher     = teacher;
+            this.classAverage = 0.0;
+            this.classRating  = 0.0;
+        }
+
+        synchronized IdBitmap enrolledCopy() {
+            return enrolled.copy();
+        }
+
+        synchronized GradeColumn gradesCopy() {
+            return grades.copy();
+        }
+
+        // Refills board from grades in one sort; caller holds this Subject's lock
+        void rebuildBoard() {
+            int n = grades.size();
+            long[] order = new long[n];   // (100 - grade, id): best grade, then lowest id, first
+            for (int i = 0; i < n; i++) order[i] = (long) (100 - grades.grade(i)) << 32 | grades.key(i);
+            Arrays.sort(order);
+            double[] scores = new double[n];
+            int[] ids = new int[n];
+            for (int i = 0; i < n; i++) {
+                scores[i] = 100 - (int) (order[i] >>> 32);
+                ids[i] = (int) order[i];
+            }
+            board.rebuild(scores, ids, n);
+        }
+    }
+
+    private static class Student {
+        int studentID;
+        String username, password, name;
+        // Guarded by this Student's monitor
+        IdBitmap subjectIDs = new IdBitmap();
+        GradeColumn grades = new GradeColumn();    // Subject ID → grade, the student-major view
+        int gradeSum, gradeCount;
+        // Written under the lock of the teacher concerned, read freely
+        Map<Integer,Integer> teacherRatings = new ConcurrentHashMap<>();
+
+        Student(int studentID, String username, String password, String name) {
+            this.studentID = studentID;
+            this.username  = username;
+            this.password  = password;
+            this.name      = name;
+        }
+
+        synchronized IdBitmap subjectsCopy() {
+            return subjectIDs.copy();
+        }
+
+        synchronized GradeColumn gradesCopy() {
+            return grades.copy();
+        }
+
+        synchronized double average() {
+            return gradeCount == 0 ? 0.0 : (double) gradeSum / gradeCount;
+        }
+    }
+
+    // — RUNNING AGGREGATES —
+
+    // Sum, count and a one-bucket-per-value histogram over a small int range.
+    // Adding or overwriting a value is O(1); min, max, median and percentiles
+    // walk the fixed-size histogram, never the grade or rating map.
+    private static class Stats {
+        final int low, high;
+        final int[] counts;
+        long sum;
+        int count;
+
+        Stats(int low, int high) {
+            this.low    = low;
+            this.high   = high;
+            this.counts = new int[high - low + 1];
+        }
+
+        boolean inRange(int value) {
+            return value >= low && value <= high;
+        }
+
+        // previous is the value being overwritten, or null for a new entry
+        void replace(Integer previous, int value) {
+            if (previous != null) {
+                counts[previous - low]--;
+                sum -= previous;
+                count--;
+            }
+            counts[value - low]++;
+            sum += value;
+            count++;
+        }
+
+        double average() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        int min() {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) return low + i;
+            }
+            return low;
+        }
+
+        int max() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] > 0) return low + i;
+            }
+            return low;
+        }
+
+        // Nearest-rank percentile: the smallest value with at least p% at or below it
+        int percentile(int p) {
+            if (count == 0) return low;
+            long rank = Math.max(1, ((long) p * count + 99) / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return low + i;
+            }
+            return high;
+        }
+
+        int countBetween(int from, int to) {
+            int n = 0;
+            for (int v = Math.max(from, low); v <= Math.min(to, high); v++) {
+                n += counts[v - low];
+            }
+            return n;
+        }
+    }
+
+    // — LEADERBOARDS —
+
+    // An order-statistic treap of (score, id), best score first and lower id
+    // first among equals. Every node knows its subtree size, so insert, remove
+    // and rank are O(log n) and the top K is an in-order walk of K nodes.
+    // Not thread-safe; owners guard it with their own lock.
+    private static class RankTree {
+        private static class Node {
+            final double score;
+            final int id;
+            int priority;
+            Node left, right;
+            int size = 1;
+
+            Node(double score, int id, int priority) {
+                this.score    = score;
+                this.id       = id;
+                this.priority = priority;
+            }
+        }
+
+        private final Random random = new Random();
+        private Node root;
+
+        int size() {
+            return size(root);
+        }
+
+        void insert(double score, int id) {
+            root = insert(root, new Node(score, id, random.nextInt()));
+        }
+
+        void remove(double score, int id) {
+            root = remove(root, score, id);
+        }
+
+        // Replaces the contents with n entries already in rank order, best
+        // first: a balanced tree, its priorities handed out largest first in
+        // level order so every parent outranks its children
+        void rebuild(double[] scores, int[] ids, int n) {
+            root = build(scores, ids, 0, n);
+            int[] priorities = new int[n];
+            for (int i = 0; i < n; i++) priorities[i] = random.nextInt();
+            Arrays.sort(priorities);
+            Deque<Node> queue = new ArrayDeque<>();
+            if (root != null) queue.add(root);
+            while (!queue.isEmpty()) {
+                Node t = queue.poll();
+                t.priority = priorities[--n];
+                if (t.left != null) queue.add(t.left);
+                if (t.right != null) queue.add(t.right);
+            }
+        }
+
+        // 1 for the best entry, size() for the worst; 0 if (score, id) isn't held
+        int rank(double score, int id) {
+            int before = 0;
+            for (Node t = root; t != null; ) {
+                if (t.score == score && t.id == id) return before + size(t.left) + 1;
+                if (precedes(score, id, t)) {
+                    t = t.left;
+                } else {
+                    before += size(t.left) + 1;
+                    t = t.right;
+                }
+            }
+            return 0;
+        }
+
+        // Share of entries ranked at or below this one, as a whole percent
+        static int percentile(int rank, int size) {
+            return size == 0 ? 0 : (int) Math.round(100.0 * (size - rank + 1) / size);
+        }
+
+        // The best k entries as {score, id}, best first
+        List<double[]> top(int k) {
+            List<double[]> out = new ArrayList<>();
+            Deque<Node> stack = new ArrayDeque<>();
+            Node t = root;
+            while ((t != null || !stack.isEmpty()) && out.size() < k) {
+                while (t != null) {
+                    stack.push(t);
+                    t = t.left;
+                }
+                t = stack.pop();
+                out.add(new double[] { t.score, t.id });
+                t = t.right;
+            }
+            return out;
+        }
+
+        private static boolean precedes(double score, int id, Node t) {
+            return score > t.score || (score == t.score && id < t.id);
+        }
+
+        private static int size(Node t) {
+            return t == null ? 0 : t.size;
+        }
+
+        private static Node fix(Node t) {
+            t.size = 1 + size(t.left) + size(t.right);
+            return t;
+        }
+
+        private static Node build(double[] scores, int[] ids, int from, int to) {
+            if (from == to) return null;
+            int mid = (from + to) >>> 1;
+            Node t = new Node(scores[mid], ids[mid], 0);
+            t.left  = build(scores, ids, from, mid);
+            t.right = build(scores, ids, mid + 1, to);
+            return fix(t);
+        }
+
+        private static Node insert(Node t, Node n) {
+            if (t == null) return n;
+            if (n.priority > t.priority) {
+                Node[] parts = split(t, n.score, n.id);
+                n.left  = parts[0];
+                n.right = parts[1];
+                return fix(n);
+            }
+            if (precedes(n.score, n.id, t)) t.left = insert(t.left, n);
+            else t.right = insert(t.right, n);
+            return fix(t);
+        }
+
+        private static Node remove(Node t, double score, int id) {
+            if (t == null) return null;
+            if (t.score == score && t.id == id) return merge(t.left, t.right);
+            if (precedes(score, id, t)) t.left = remove(t.left, score, id);
+            else t.right = remove(t.right, score, id);
+            return fix(t);
+        }
+
+        // {entries before (score, id), entries after it}
+        private static Node[] split(Node t, double score, int id) {
+            if (t == null) return new Node[2];
+            if (precedes(score, id, t)) {
+                Node[] parts = split(t.left, score, id);
+                t.left = parts[1];
+                parts[1] = fix(t);
+                return parts;
+            }
+            Node[] parts = split(t.right, score, id);
+            t.right = parts[0];
+            parts[0] = fix(t);
+            return parts;
+        }
+
+        private static Node merge(Node a, Node b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a.priority > b.priority) {
+                a.right = merge(a.right, b);
+                return fix(a);
+            }
+            b.left = merge(a, b.left);
+            return fix(b);
+        }
+    }
+
+    // — GRADE COLUMNS —
+
+    // Grades as two packed columns, keys (student or subject IDs) in int[] and
+    // grades in byte[], in insertion order. Per-subject columns are indexed
+    // by an open-addressing table of row numbers once they outgrow a linear
+    // scan; a student's handful of subjects never does. Scans such as mean()
+    // and correlation() are plain loops over the primitive arrays.
+    // Not thread-safe; owners guard it with their own lock.
+    private static class GradeColumn {
+        private static final int SCAN_LIMIT = 16;   // Rows before the index is built
+
+        private int[] keys = new int[4];
+        private byte[] grades = new byte[4];
+        private int size;
+        private int[] index;   // Row + 1 per slot, 0 = empty; null while small
+
+        int size() {
+            return size;
+        }
+
+        int key(int row) {
+            return keys[row];
+        }
+
+        int grade(int row) {
+            return grades[row];
+        }
+
+        // Grade for key, or -1
+        int get(int key) {
+            int row = rowOf(key);
+            return row < 0 ? -1 : grades[row];
+        }
+
+        // Sets key's grade; returns the one it replaced, or -1
+        int put(int key, int grade) {
+            int row = rowOf(key);
+            if (row >= 0) {
+                int previous = grades[row];
+                grades[row] = (byte) grade;
+                return previous;
+            }
+            if (size == keys.length) {
+                keys   = Arrays.copyOf(keys, size * 2);
+                grades = Arrays.copyOf(grades, size * 2);
+            }
+            keys[size] = key;
+            grades[size] = (byte) grade;
+            size++;
+            if (index != null && size * 2 > index.length) {
+                rebuildIndex(index.length * 2);
+            } else if (index == null && size > SCAN_LIMIT) {
+                rebuildIndex(64);
+            } else if (index != null) {
+                slot(key, size);
+            }
+            return -1;
+        }
+
+        double mean() {
+            long sum = 0;
+            for (int i = 0; i < size; i++) sum += grades[i];
+            return size == 0 ? 0.0 : (double) sum / size;
+        }
+
+        GradeColumn copy() {
+            GradeColumn c = new GradeColumn();
+            c.keys   = Arrays.copyOf(keys, Math.max(4, size));
+            c.grades = Arrays.copyOf(grades, Math.max(4, size));
+            c.size   = size;
+            if (index != null) c.index = index.clone();
+            return c;
+        }
+
+        // Reorders rows by key (reports list subjects in ID order)
+        void sortByKey() {
+            for (int i = 1; i < size; i++) {          // Insertion sort: a handful of rows
+                int k = keys[i];
+                byte g = grades[i];
+                int j = i - 1;
+                for (; j >= 0 && keys[j] > k; j--) {
+                    keys[j + 1]   = keys[j];
+                    grades[j + 1] = grades[j];
+                }
+                keys[j + 1]   = k;
+                grades[j + 1] = g;
+            }
+            if (index != null) rebuildIndex(index.length);
+        }
+
+        // {Pearson r, number of keys graded in both}
+        static double[] correlation(GradeColumn x, GradeColumn y) {
+            if (x.size > y.size) {
+                GradeColumn t = x; x = y; y = t;    // Walk the shorter, probe the longer
+            }
+            long n = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+            for (int i = 0; i < x.size; i++) {
+                int b = y.get(x.keys[i]);
+                if (b < 0) continue;
+                int a = x.grades[i];
+                n++;
+                sx += a;
+                sy += b;
+                sxx += a * a;
+                syy += b * b;
+                sxy += a * b;
+            }
+            double cov = n * sxy - (double) sx * sy;
+            double var = Math.sqrt(n * sxx - (double) sx * sx) * Math.sqrt(n * syy - (double) sy * sy);
+            return new double[] { var == 0 ? 0.0 : cov / var, n };
+        }
+
+        private int rowOf(int key) {
+            if (index == null) {
+                for (int i = 0; i < size; i++) if (keys[i] == key) return i;
+                return -1;
+            }
+            int mask = index.length - 1;
+            for (int s = mix(key) & mask; index[s] != 0; s = (s + 1) & mask) {
+                if (keys[index[s] - 1] == key) return index[s] - 1;
+            }
+            return -1;
+        }
+
+        private void rebuildIndex(int slots) {
+            index = new int[slots];
+            for (int i = 0; i < size; i++) slot(keys[i], i + 1);
+        }
+
+        private void slot(int key, int rowPlusOne) {
+            int mask = index.length - 1;
+            int s = mix(key) & mask;
+            while (index[s] != 0) s = (s + 1) & mask;
+            index[s] = rowPlusOne;
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    // — ENROLLMENT BITMAPS —
+
+    // A compressed set of int IDs. Each ID's high 16 bits pick a container that
+    // holds the low 16 bits, either as a sorted char[] (sparse) or as a 65536-bit
+    // long[] (dense), switching at 4096 entries so neither form exceeds 8 KB.
+    // IDs are handed out sequentially, so a whole school fits in a few containers
+    // and membership, AND, ANDNOT and intersection counts work a word at a time.
+    // Not thread-safe; owners guard it with their own lock.
+    private static class IdBitmap {
+        private static final int ARRAY_MAX = 4096;
+
+        private final TreeMap<Integer, Container> containers = new TreeMap<>();
+        private int cardinality;
+
+        boolean add(int id) {
+            Container c = containers.computeIfAbsent(id >>> 16, k -> new Container());
+            if (!c.add((char) id)) return false;
+            cardinality++;
+            return true;
+        }
+
+        boolean contains(int id) {
+            Container c = containers.get(id >>> 16);
+            return c != null && c.contains((char) id);
+        }
+
+        int cardinality() {
+            return cardinality;
+        }
+
+        IdBitmap copy() {
+            IdBitmap out = new IdBitmap();
+            containers.forEach((high, c) -> out.containers.put(high, c.copy()));
+            out.cardinality = cardinality;
+            return out;
+        }
+
+        IdBitmap and(IdBitmap other) {
+            IdBitmap out = new IdBitmap();
+            containers.forEach((high, c) -> {
+                Container o = other.containers.get(high);
+                if (o != null) out.put(high, c.and(o));
+            });
+            return out;
+        }
+
+        IdBitmap andNot(IdBitmap other) {
+            IdBitmap out = new IdBitmap();
+            containers.forEach((high, c) -> {
+                Container o = other.containers.get(high);
+                out.put(high, o == null ? c.copy() : c.andNot(o));
+            });
+            return out;
+        }
+
+        // |this ∩ other| without building the intersection
+        int andCardinality(IdBitmap other) {
+            int n = 0;
+            for (Map.Entry<Integer, Container> e : containers.entrySet()) {
+                Container o = other.containers.get(e.getKey());
+                if (o != null) n += e.getValue().andCardinality(o);
+            }
+            return n;
+        }
+
+        // Ascending ID order
+        void forEach(IntConsumer action) {
+            Cursor it = cursor();
+            while (it.hasNext()) action.accept(it.next());
+        }
+
+        Cursor cursor() {
+            return new Cursor();
+        }
+
+        private void put(int high, Container c) {
+            if (c.size == 0) return;
+            containers.put(high, c);
+            cardinality += c.size;
+        }
+
+        // Ascending iterator over plain ints, so callers can throw checked exceptions
+        class Cursor {
+            private final Iterator<Map.Entry<Integer, Container>> outer = containers.entrySet().iterator();
+            private Container current;
+            private int base, index, word = -1;
+            private long bits;
+
+            boolean hasNext() {
+                while (true) {
+                    if (current != null) {
+                        if (current.array != null) {
+                            if (index < current.size) return true;
+                        } else {
+                            while (bits == 0 && ++word < current.bits.length) bits = current.bits[word];
+                            if (bits != 0) return true;
+                        }
+                    }
+                    if (!outer.hasNext()) return false;
+                    Map.Entry<Integer, Container> e = outer.next();
+                    current = e.getValue();
+                    base = e.getKey() << 16;
+                    index = 0;
+                    word = -1;
+                    bits = 0;
+                }
+            }
+
+            int next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                if (current.array != null) return base | current.array[index++];
+                int low = word << 6 | Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                return base | low;
+            }
+        }
+
+        private static class Container {
+            char[] array = new char[4];   // Sorted; null once dense
+            long[] bits;                  // 1024 words; null while sparse
+            int size;
+
+            boolean contains(char low) {
+                if (array != null) return Arrays.binarySearch(array, 0, size, low) >= 0;
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+
+            boolean add(char low) {
+                if (array == null) {
+                    long before = bits[low >>> 6];
+                    bits[low >>> 6] = before | (1L << low);
+                    if (before == bits[low >>> 6]) return false;
+                    size++;
+                    return true;
+                }
+                int at = Arrays.binarySearch(array, 0, size, low);
+                if (at >= 0) return false;
+                at = -at - 1;
+                if (size == ARRAY_MAX) {
+                    toBits();
+                    return add(low);
+                }
+                if (size == array.length) array = Arrays.copyOf(array, Math.min(ARRAY_MAX, size * 2));
+                System.arraycopy(array, at, array, at + 1, size - at);
+                array[at] = low;
+                size++;
+                return true;
+            }
+
+            Container copy() {
+                Container c = new Container();
+                c.array = array == null ? null : array.clone();
+                c.bits  = bits == null ? null : bits.clone();
+                c.size  = size;
+                return c;
+            }
+
+            Container and(Container o) {
+                if (array != null) return filter(o, true);
+                if (o.array != null) return o.filter(this, true);
+                long[] out = new long[1024];
+                for (int i = 0; i < out.length; i++) out[i] = bits[i] & o.bits[i];
+                return fromBits(out);
+            }
+
+            Container andNot(Container o) {
+                if (array != null) return filter(o, false);
+                long[] out = bits.clone();
+                if (o.array != null) {
+                    for (int i = 0; i < o.size; i++) out[o.array[i] >>> 6] &= ~(1L << o.array[i]);
+                } else {
+                    for (int i = 0; i < out.length; i++) out[i] &= ~o.bits[i];
+                }
+                return fromBits(out);
+            }
+
+            int andCardinality(Container o) {
+                if (array != null || o.array != null) {
+                    Container sparse = array != null ? this : o, other = sparse == this ? o : this;
+                    int n = 0;
+                    for (int i = 0; i < sparse.size; i++) if (other.contains(sparse.array[i])) n++;
+                    return n;
+                }
+                int n = 0;
+                for (int i = 0; i < bits.length; i++) n += Long.bitCount(bits[i] & o.bits[i]);
+                return n;
+            }
+
+            // This (sparse) container's entries that are / aren't in o
+            private Container filter(Container o, boolean keepIfPresent) {
+                Container c = new Container();
+                c.array = new char[Math.max(4, size)];
+                for (int i = 0; i < size; i++) {
+                    if (o.contains(array[i]) == keepIfPresent) c.array[c.size++] = array[i];
+                }
+                return c;
+            }
+
+            private void toBits() {
+                bits = new long[1024];
+                for (int i = 0; i < size; i++) bits[array[i] >>> 6] |= 1L << array[i];
+                array = null;
+            }
+
+            private static Container fromBits(long[] words) {
+                Container c = new Container();
+                for (long w : words) c.size += Long.bitCount(w);
+                if (c.size > ARRAY_MAX) {
+                    c.array = null;
+                    c.bits = words;
+                    return c;
+                }
+                c.array = new char[Math.max(4, c.size)];
+                int n = 0;
+                for (int i = 0; i < words.length; i++) {
+                    for (long w = words[i]; w != 0; w &= w - 1) {
+                        c.array[n++] = (char) (i << 6 | Long.numberOfTrailingZeros(w));
+                    }
+                }
+                return c;
+            }
+        }
+    }
+
+    // — NAME SEARCH INDEX —
+
+    // Names are indexed by word. Each distinct word ("john", "smith") is stored
+    // once in a sorted vocabulary, with the sorted IDs of everyone whose name
+    // contains it; trigrams of each word ("$sm", "smi", ... "th$") point back
+    // at the vocabulary. A query word therefore expands against the (small)
+    // vocabulary, not the directory: exactly, as a prefix (a range of the
+    // sorted map), or within one or two typos (words sharing enough trigrams,
+    // then checked by edit distance). People are then found through the
+    // rarest query word and scored on the rest: cheapest total cost first,
+    // earliest registered among equals.
+    private static class NameIndex {
+        // Match costs: an exact word beats a completed prefix beats a typo
+        private static final int EXACT = 0, PREFIX = 1, PER_EDIT = 2;
+
+        private static class Word {
+            final String text;
+            int[] ids = new int[2];   // Sorted
+            int count;
+
+            Word(String text) {
+                this.text = text;
+            }
+        }
+
+        private final TreeMap<String, Word> vocabulary = new TreeMap<>();
+        private final List<Word> byOrdinal = new ArrayList<>();
+        // (trigram, word length) → [0] = count, then sorted ordinals; keyed by length
+        // too, since a typo can only change a word's length by the edits allowed
+        private final Map<Long, int[]> grams = new HashMap<>();
+        private final Map<Integer, String> names = new HashMap<>();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        void add(int id, String name) {
+            String norm = normalize(name);
+            if (norm.isEmpty()) return;
+            lock.writeLock().lock();
+            try {
+                names.put(id, norm);
+                for (String text : new LinkedHashSet<>(Arrays.asList(norm.split(" ")))) {
+                    Word w = vocabulary.get(text);
+                    if (w == null) {
+                        w = new Word(text);
+                        vocabulary.put(text, w);
+                        byOrdinal.add(w);
+                        for (long g : gramsOf(text)) {
+                            long key = gramKey(g, text.length());
+                            int[] list = grams.get(key);
+                            if (list == null) list = new int[4];
+                            else if (list[0] + 1 == list.length) list = Arrays.copyOf(list, list.length * 2);
+                            list[++list[0]] = byOrdinal.size() - 1;   // Ordinals only grow
+                            grams.put(key, list);
+                        }
+                    }
+                    insertSorted(w, id);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // Up to k IDs accepted by filter, best match first
+        List<Integer> search(String query, int k, IntPredicate filter) {
+            String q = normalize(query);
+            if (q.isEmpty()) return new ArrayList<>();
+            String[] qWords = q.split(" ");
+
+            lock.readLock().lock();
+            try {
+                // Typo matches cost at least PER_EDIT, so if exact and prefix
+                // words alone fill k places more cheaply, there's no need to guess
+                List<int[]> ranked = rank(qWords, k, filter, false);
+                if (ranked.size() < k || ranked.get(ranked.size() - 1)[1] >= PER_EDIT) {
+                    ranked = rank(qWords, k, filter, true);
+                }
+                List<Integer> out = new ArrayList<>(ranked.size());
+                for (int[] r : ranked) out.add(r[0]);
+                return out;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // The k best {id, cost} pairs, cheapest first; caller holds the read lock
+        private List<int[]> rank(String[] qWords, int k, IntPredicate filter, boolean typos) {
+            List<Map<String, Integer>> expansions = new ArrayList<>();
+            int driver = 0;
+            long driverSize = Long.MAX_VALUE;
+            for (int i = 0; i < qWords.length; i++) {
+                Map<String, Integer> ex = expand(qWords[i], typos);
+                if (ex.isEmpty()) return new ArrayList<>();   // One word matches nobody
+                long size = 0;
+                for (String w : ex.keySet()) size += vocabulary.get(w).count;
+                if (size < driverSize) {
+                    driver = i;
+                    driverSize = size;
+                }
+                expansions.add(ex);
+            }
+
+            // Walk the rarest word's people, cheapest expansion first. Anyone
+            // first reached through an expansion costs at least that much, so
+            // once k people cost no more than it, nobody later can place.
+            List<Map.Entry<String, Integer>> walk = new ArrayList<>(expansions.get(driver).entrySet());
+            walk.sort(Map.Entry.comparingByValue());
+            PriorityQueue<int[]> best = new PriorityQueue<>(   // {id, cost}; worst on top
+                    (a, b) -> a[1] != b[1] ? b[1] - a[1] : b[0] - a[0]);
+            Set<Integer> seen = new HashSet<>();
+            walking:
+            for (Map.Entry<String, Integer> e : walk) {
+                Word w = vocabulary.get(e.getKey());
+                for (int i = 0; i < w.count; i++) {
+                    if (best.size() == k && best.peek()[1] <= e.getValue()) break walking;
+                    int id = w.ids[i];
+                    if (!seen.add(id) || !filter.test(id)) continue;
+                    int cost = costOf(names.get(id), qWords.length, expansions);
+                    if (cost < 0) continue;
+                    best.add(new int[] { id, cost });
+                    if (best.size() > k) best.poll();
+                }
+            }
+
+            List<int[]> ranked = new ArrayList<>(best);
+            ranked.sort((a, b) -> a[1] != b[1] ? a[1] - b[1] : a[0] - b[0]);
+            return ranked;
+        }
+
+        // Vocabulary words a query word could mean → cheapest cost of each
+        private Map<String, Integer> expand(String qw, boolean typos) {
+            Map<String, Integer> out = new HashMap<>();
+            for (String w : vocabulary.subMap(qw, true, qw + Character.MAX_VALUE, true).keySet()) {
+                out.put(w, w.length() == qw.length() ? EXACT : PREFIX);
+            }
+            if (!typos || qw.length() < 3) return out;   // Too short to guess at typos
+            if (qw.length() <= 4) {
+                // Too few trigrams to filter on, but few enough one-edit
+                // variants to just look each of them up
+                for (String v : oneEditVariants(qw)) {
+                    if (vocabulary.containsKey(v)) out.merge(v, PER_EDIT, Math::min);
+                }
+                return out;
+            }
+
+            int maxEdits = qw.length() <= 7 ? 1 : 2;
+            long[] qGrams = gramsOf(qw);
+            int needed = Math.max(1, qGrams.length - 4 * maxEdits);   // One edit breaks ≤ 4 grams
+            for (int len = Math.max(1, qw.length() - maxEdits); len <= qw.length() + maxEdits; len++) {
+                List<int[]> lists = new ArrayList<>();
+                for (long g : qGrams) {
+                    int[] list = grams.get(gramKey(g, len));
+                    if (list != null) lists.add(list);
+                }
+                if (lists.size() < needed) continue;
+
+                // A word sharing `needed` grams is in at least one of the shortest
+                // (lists - needed + 1) lists: those are merged by sorting, and the
+                // longer lists are only probed for the words found that way
+                lists.sort(Comparator.comparingInt(l -> l[0]));
+                int introducing = lists.size() - needed + 1, total = 0;
+                for (int i = 0; i < introducing; i++) total += lists.get(i)[0];
+                int[] merged = new int[total];
+                for (int i = 0, at = 0; i < introducing; i++) {
+                    int[] list = lists.get(i);
+                    System.arraycopy(list, 1, merged, at, list[0]);
+                    at += list[0];
+                }
+                Arrays.sort(merged);
+                for (int i = 0; i < merged.length; ) {
+                    int ordinal = merged[i], n = 0;
+                    while (i < merged.length && merged[i] == ordinal) { i++; n++; }
+                    for (int j = introducing; j < lists.size() && n < needed; j++) {
+                        int[] list = lists.get(j);
+                        if (Arrays.binarySearch(list, 1, list[0] + 1, ordinal) >= 0) n++;
+                    }
+                    if (n < needed) continue;
+                    String w = byOrdinal.get(ordinal).text;
+                    int d = editDistance(qw, w, maxEdits);
+                    if (d <= maxEdits) out.merge(w, d * PER_EDIT, Math::min);
+                }
+            }
+            return out;
+        }
+
+        // Every string one deletion, swap, substitution or insertion away
+        private static Set<String> oneEditVariants(String w) {
+            Set<String> out = new HashSet<>();
+            String alphabet = "abcdefghijklmnopqrstuvwxyz-'";
+            for (int i = 0; i <= w.length(); i++) {
+                String head = w.substring(0, i), tail = w.substring(i);
+                if (!tail.isEmpty()) out.add(head + tail.substring(1));
+                if (tail.length() > 1) out.add(head + tail.charAt(1) + tail.charAt(0) + tail.substring(2));
+                for (char c : alphabet.toCharArray()) {
+                    if (!tail.isEmpty()) out.add(head + c + tail.substring(1));
+                    out.add(head + c + tail);
+                }
+            }
+            out.remove(w);
+            return out;
+        }
+
+        private static long gramKey(long gram, int wordLength) {
+            return gram << 8 | Math.min(wordLength, 255);
+        }
+
+        // Total cost of the best word in name for each query word, or -1 if
+        // some query word matches none of them
+        private static int costOf(String name, int queryWords, List<Map<String, Integer>> expansions) {
+            String[] words = name.split(" ");
+            int total = 0;
+            for (int i = 0; i < queryWords; i++) {
+                int cost = Integer.MAX_VALUE;
+                for (String w : words) {
+                    Integer c = expansions.get(i).get(w);
+                    if (c != null) cost = Math.min(cost, c);
+                }
+                if (cost == Integer.MAX_VALUE) return -1;
+                total += cost;
+            }
+            return total;
+        }
+
+        private static void insertSorted(Word w, int id) {
+            int n = w.count;
+            int at = n == 0 || w.ids[n - 1] < id ? n                     // New IDs only grow,
+                   : -Arrays.binarySearch(w.ids, 0, n, id) - 1;          // so this is rare
+            if (at < 0) return;                                          // Already listed
+            if (n == w.ids.length) w.ids = Arrays.copyOf(w.ids, n * 2);
+            System.arraycopy(w.ids, at, w.ids, at + 1, n - at);
+            w.ids[at] = id;
+            w.count = n + 1;
+        }
+
+        private static String normalize(String name) {
+            return name.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+        }
+
+        // Distinct trigrams of $word$, packed three chars to a long
+        private static long[] gramsOf(String word) {
+            String w = "$" + word + "$";
+            long[] out = new long[w.length() - 2];
+            int n = 0;
+            for (int i = 0; i + 3 <= w.length(); i++) {
+                long g = (long) w.charAt(i) << 32 | (long) w.charAt(i + 1) << 16 | w.charAt(i + 2);
+                boolean dup = false;
+                for (int j = 0; j < n; j++) dup |= out[j] == g;
+                if (!dup) out[n++] = g;
+            }
+            return Arrays.copyOf(out, n);
+        }
+
+        // Edit distance counting a swap of neighbours as one edit ("kamitne" →
+        // "kamiten"), giving up (returning limit + 1) once past the limit
+        private static int editDistance(String a, String b, int limit) {
+            if (Math.abs(a.length() - b.length()) > limit) return limit + 1;
+            int[] prev2 = new int[b.length() + 1], prev = new int[b.length() + 1], cur = new int[b.length() + 1];
+            for (int j = 0; j <= b.length(); j++) prev[j] = j;
+            for (int i = 1; i <= a.length(); i++) {
+                cur[0] = i;
+                int rowMin = i;
+                for (int j = 1; j <= b.length(); j++) {
+                    int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                    cur[j] = Math.min(Math.min(cur[j - 1] + 1, prev[j] + 1), prev[j - 1] + cost);
+                    if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                        cur[j] = Math.min(cur[j], prev2[j - 2] + 1);
+                    }
+                    rowMin = Math.min(rowMin, cur[j]);
+                }
+                if (rowMin > limit) return limit + 1;
+                int[] t = prev2; prev2 = prev; prev = cur; cur = t;
+            }
+            return prev[b.length()];
         }
     }
 }
@@ -1,7 +1,29 @@
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.zip.CRC32;
 
 
 /* Creating a to do list:
@@ -12,79 +34,1346 @@ import java.util.List;
  */
 public class Todo {
 
-    // List is interface representing a collection of Strings as we declare
-    static List<String> list = new ArrayList<>();
-    static final String FILE_PATH = "data/todo.txt";
+    // Items by ID, in the order they were added, so removal is O(1)
+    static Map<Integer, Item> items = new LinkedHashMap<>();
+    // Items by text, oldest first, for removing by text
+    static Map<String, ArrayDeque<Item>> itemsByText = new HashMap<>();
+    static int nextId = 1;
 
+    // Binary min-heap of every item, most urgent at the root; each item
+    // knows its slot, so removing one is O(log n)
+    static Item[] heap = new Item[16];
+    static int heapSize;
+
+    static final int NO_DUE = Integer.MAX_VALUE;   // Sorts after every real date
+
+    static final String FILE_PATH = "data/todo.txt";   // The old store, imported once into the log
+    static final String LOG_PATH = "data/todo.log";
+    static final String INDEX_PATH = "data/todo.idx";
+    static final String SOCKET_PATH = "data/todo.sock";
+
+    // Where commands print: standard output, or the reply to a daemon client
+    static PrintStream reply = System.out;
+
+    // The log is append-only: one record per add or remove, in order. An
+    // item record is its op byte, ID, priority, due date (epoch day), UTF-8
+    // length and bytes; a delete is a tombstone holding just the ID. Loading
+    // replays it, and a command's records go out in one write. Logs from
+    // before IDs used text-only adds and removes; those still replay.
+    static final byte OP_ITEM = 'I';
+    static final byte OP_DELETE = 'D';
+    static final byte OP_ADD = 'A';
+    static final byte OP_REMOVE = 'R';
+
+    // Compaction rewrites the log as one record per live item, once it
+    // holds at least this many records and this share of them are dead
+    static final int COMPACT_MIN_RECORDS = 1024;
+    static final double COMPACT_GARBAGE_RATIO = 0.5;
+
+    // A command's records collect here until it commits them
+    static ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    static DataOutputStream log = new DataOutputStream(pending);
+    static Thread compactor;
+    static long logRecords;        // Live and dead, up to logBytes
+    static long logBytes;          // How far into the log the loaded list reaches
+
+    static class Item {
+        final int id;
+        final String text;
+        final int priority;   // Higher is more urgent
+        final int due;        // Epoch day, or NO_DUE
+        int slot;             // Index in heap
+
+        Item(int id, String text, int priority, int due) {
+            this.id = id;
+            this.text = text;
+            this.priority = priority;
+            this.due = due;
+        }
+
+        @Override
+        public String toString() {
+            String s = "#" + id + " " + text;
+            if (priority != 0) {
+                s += " [p" + priority + "]";
+            }
+            if (due != NO_DUE) {
+                s += " due " + LocalDate.ofEpochDay(due);
+            }
+            return s;
+        }
+    }
+
+    // java Todo add [-p priority] [-d yyyy-mm-dd] item...   (options apply to the items after them)
+    // java Todo remove #id-or-text...   (a bare number is an ID unless an item has it as text)
+    // java Todo get
+    // java Todo next [count]       the most urgent items
+    // java Todo due [yyyy-mm-dd]   items due by then (default today), most urgent first
+    // java Todo search word [prefix*]...   items containing every word
+    // java Todo daemon / stop      keep the list resident and serve the commands above
     public static void main(String[] args) {
         if (args.length == 0) {
-            System.out.println("Please provide a method and list of what to add or remove");
+            reply.println("Please provide a method and list of what to add or remove");
+            return;
+        }
+        if (args[0].equals("daemon")) {
+            daemon();
+            return;
+        }
+        if (forward(args)) {
+            return;
+        }
+        if (args[0].equals("stop")) {
+            reply.println("No daemon is running.");
             return;
         }
+        if (args[0].equals("search")) {
+            search(Arrays.copyOfRange(args, 1, args.length));   // Reads the index, not the whole log
+            return;
+        }
+        run(args);
+        compactInBackground();
+    }
+
+    // Runs one command against the list as committed. Add and remove hold
+    // the write lock from catching up with the log until their records are
+    // committed; everything else reads without it.
+    private static void run(String[] args) {
+        boolean writes = args[0].equals("add") || args[0].equals("remove");
+        try {
+            if (writes) {
+                beginWrite();
+            } else {
+                refresh();
+            }
+            execute(args);
+            if (writes) {
+                commit();
+            }
+        } catch (IOException e) {
+            reply.println((writes ? "Failed to save the list: " : "Failed to load the list: ") + e);
+        } finally {
+            endWrite();
+        }
+    }
+
+    // Runs one command against the loaded list
+    private static void execute(String[] args) {
         try {
-            loadListFromFile();
             String action = args[0];
             switch (action) {
                 case "add":
+                    int priority = 0;
+                    int due = NO_DUE;
                     for (int i = 1; i < args.length; i++) {
-                        add(args[i]);
+                        switch (args[i]) {
+                            case "-p":
+                                priority = Integer.parseInt(args[++i]);
+                                break;
+                            case "-d":
+                                due = (int) LocalDate.parse(args[++i]).toEpochDay();
+                                break;
+                            default:
+                                add(args[i], priority, due);
+                        }
                     }
                     break;
                 case "remove":
                     for (int i = 1; i < args.length; i++) {
-                        if (list.contains(args[i])) {
-                            remove(args[i]);
-                        } else {
-                            System.out.println("The item does not exist within the list.");
+                        Item item = find(args[i]);
+                        if (item != null) {
+                            remove(item);
                         }
                     }
                     break;
                 case "get":
                     get();
                     break;
+                case "next":
+                    print(mostUrgent(args.length > 1 ? Integer.parseInt(args[1]) : 1, NO_DUE));
+                    break;
+                case "due":
+                    LocalDate by = args.length > 1 ? LocalDate.parse(args[1]) : LocalDate.now();
+                    print(mostUrgent(Integer.MAX_VALUE, (int) by.toEpochDay()));
+                    break;
+                case "search":
+                    search(Arrays.copyOfRange(args, 1, args.length));
+                    break;
                 default:
-                    System.out.println("Invalid action");
+                    reply.println("Invalid action");
             }
         } catch (ArrayIndexOutOfBoundsException e) {
-            System.out.println(e);
+            reply.println(e);
+        } catch (NumberFormatException | DateTimeParseException e) {
+            reply.println("Invalid number or date: " + e.getMessage());
         }
-
     }
 
     private static void get() {
-        System.out.println("There are currently " + list.size() + " todos in the list.");
-        System.out.println("The list consists of: " + list);
+        reply.println("There are currently " + items.size() + " todos in the list.");
+        reply.println("The list consists of: " + items.values());
+    }
+
+    private static void print(List<Item> found) {
+        if (found.isEmpty()) {
+            reply.println("Nothing to do.");
+        }
+        for (Item item : found) {
+            reply.println(item);
+        }
+    }
+
+    private static void add(String text, int priority, int due) {
+        Item item = new Item(nextId, text, priority, due);
+        put(item);
+        append(item);
+    }
+
+    private static void remove(Item item) {
+        drop(item);
+        appendDelete(item.id);
+    }
+
+    // "#42" is always ID 42; otherwise the oldest item with that text, or
+    // the ID if no item has it as text. Null, having said why, if there is
+    // no such item or a bare number names two different ones.
+    private static Item find(String key) {
+        boolean explicit = key.startsWith("#");
+        String digits = explicit ? key.substring(1) : key;
+        Item byId = null;
+        if (!digits.isEmpty() && digits.chars().allMatch(Character::isDigit) && digits.length() < 10) {
+            byId = items.get(Integer.parseInt(digits));
+        }
+        ArrayDeque<Item> same = explicit ? null : itemsByText.get(key);
+        Item byText = same == null ? null : same.peekFirst();
+        if (byId != null && byText != null && byId != byText) {
+            reply.println("'" + key + "' is both an item's text and an ID; use #" + key + " for " + byId + ".");
+            return null;
+        }
+        Item item = byText != null ? byText : byId;
+        if (item == null) {
+            reply.println("The item does not exist within the list.");
+        }
+        return item;
+    }
+
+    private static void put(Item item) {
+        items.put(item.id, item);
+        itemsByText.computeIfAbsent(item.text, k -> new ArrayDeque<>()).addLast(item);
+        nextId = Math.max(nextId, item.id + 1);
+        heapAdd(item);
+        if (residentIndex != null) {   // Whether added here or replayed from another process
+            residentAdded.put(item.id, item);
+        }
+    }
+
+    private static void drop(Item item) {
+        items.remove(item.id);
+        ArrayDeque<Item> same = itemsByText.get(item.text);
+        same.remove(item);
+        if (same.isEmpty()) {
+            itemsByText.remove(item.text);
+        }
+        heapRemove(item);
+        if (residentIndex != null && residentAdded.remove(item.id) == null) {
+            residentDeleted.add(item.id);
+        }
+    }
+
+    // — URGENCY HEAP —
+
+    // Earliest due date first, then highest priority, then oldest
+    private static boolean moreUrgent(Item a, Item b) {
+        if (a.due != b.due) {
+            return a.due < b.due;
+        }
+        if (a.priority != b.priority) {
+            return a.priority > b.priority;
+        }
+        return a.id < b.id;
+    }
+
+    // Up to count items due on or before dueBy, most urgent first. Walks the
+    // heap from the root with a frontier of candidate slots, so it costs
+    // O(k log k) for k results however long the list is.
+    private static List<Item> mostUrgent(int count, int dueBy) {
+        List<Item> found = new ArrayList<>();
+        PriorityQueue<Integer> frontier = new PriorityQueue<>((i, j) -> moreUrgent(heap[i], heap[j]) ? -1 : 1);
+        if (heapSize > 0) {
+            frontier.add(0);
+        }
+        while (!frontier.isEmpty() && found.size() < count) {
+            int i = frontier.poll();
+            if (heap[i].due > dueBy) {
+                break;
+            }
+            found.add(heap[i]);
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < heapSize; child++) {
+                frontier.add(child);
+            }
+        }
+        return found;
+    }
+
+    private static void heapAdd(Item item) {
+        if (heapSize == heap.length) {
+            heap = Arrays.copyOf(heap, heapSize * 2);
+        }
+        item.slot = heapSize++;
+        heap[item.slot] = item;
+        siftUp(item.slot);
+    }
+
+    private static void heapRemove(Item item) {
+        int i = item.slot;
+        Item last = heap[--heapSize];
+        heap[heapSize] = null;
+        if (i == heapSize) {
+            return;
+        }
+        heap[i] = last;
+        last.slot = i;
+        siftDown(i);
+        siftUp(last.slot);
+    }
+
+    private static void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (!moreUrgent(heap[i], heap[parent])) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(int i) {
+        while (true) {
+            int best = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < heapSize; child++) {
+                if (moreUrgent(heap[child], heap[best])) {
+                    best = child;
+                }
+            }
+            if (best == i) {
+                return;
+            }
+            swap(i, best);
+            i = best;
+        }
+    }
+
+    private static void swap(int i, int j) {
+        Item t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+        heap[i].slot = i;
+        heap[j].slot = j;
+    }
+
+    // — SEARCH —
+    // todo.idx is an inverted index: every word (lower-cased letters and
+    // digits) → the sorted IDs of the items containing it, plus each item's
+    // fields so hits can be shown. It is mapped, not read: a query binary
+    // searches the sorted word table and touches only the postings it needs.
+    // It records how far into the log it reaches; records after that are
+    // replayed on top as a small delta, and once that tail passes
+    // INDEX_TAIL_LIMIT of the indexed size the index is rewritten from a
+    // full replay. So is a missing index, or one for another generation of
+    // the log (as compaction leaves). The generation alone can't be trusted:
+    // it restarts at 1 when todo.ctl is lost, so the index also keeps a
+    // checksum of the log's first and last IDENTITY_WINDOW bytes up to where
+    // it reaches, and one that doesn't match the log is rebuilt too.
+
+    static final int INDEX_MAGIC = 0x54494433;   // "TID3"
+    static final int IDENTITY_WINDOW = 4096;
+    static final double INDEX_TAIL_LIMIT = 0.125;
+
+    private static void search(String[] query) {
+        List<String> words = new ArrayList<>();
+        List<Boolean> prefix = new ArrayList<>();
+        for (String arg : query) {
+            List<String> parts = words(arg);
+            for (int i = 0; i < parts.size(); i++) {
+                words.add(parts.get(i));
+                prefix.add(i == parts.size() - 1 && arg.endsWith("*"));
+            }
+        }
+        if (words.isEmpty()) {
+            reply.println("Please provide words to search for.");
+            return;
+        }
+        try {
+            Index index;
+            Map<Integer, Item> added;
+            Set<Integer> deleted;
+            if (resident) {
+                if (residentIndex == null
+                        || residentAdded.size() + residentDeleted.size() > Math.max(4096, items.size() * INDEX_TAIL_LIMIT)) {
+                    residentIndex = null;
+                    residentAdded.clear();
+                    residentDeleted.clear();
+                    residentIndex = openIndex(loaded(), residentAdded, residentDeleted);
+                }
+                index = residentIndex;
+                added = residentAdded;
+                deleted = residentDeleted;
+            } else {
+                added = new LinkedHashMap<>();
+                deleted = new HashSet<>();
+                index = openIndex(snapshot(), added, deleted);
+            }
+            if (index == null) {   // Another process replaced the index meanwhile: scan the list just loaded
+                List<Item> found = new ArrayList<>();
+                for (Item item : items.values()) {
+                    if (matches(words(item.text), words, prefix)) {
+                        found.add(item);
+                    }
+                }
+                printMatches(found);
+                return;
+            }
+
+            int[] hits = null;
+            for (int i = 0; i < words.size() && (hits == null || hits.length > 0); i++) {
+                int[] match = index.lookup(words.get(i), prefix.get(i));
+                hits = hits == null ? match : intersect(hits, match);
+            }
+            List<Item> found = new ArrayList<>();
+            for (int id : hits) {
+                if (!deleted.contains(id)) {
+                    found.add(index.item(id));
+                }
+            }
+            for (Item item : added.values()) {
+                if (matches(words(item.text), words, prefix)) {
+                    found.add(item);
+                }
+            }
+            printMatches(found);
+        } catch (IOException e) {
+            reply.println("Failed to search the list: " + e);
+        }
+    }
+
+    private static void printMatches(List<Item> found) {
+        reply.println(found.size() + " match(es):");
+        for (Item item : found) {
+            reply.println(item);
+        }
+    }
+
+    // The index for the snapshot, with its records since the index was
+    // written collected into added and deleted; rewritten first if that tail
+    // is too long to replay. Null only if another process rewrote it for a
+    // different snapshot in between.
+    private static Index openIndex(Snapshot snapshot, Map<Integer, Item> added, Set<Integer> deleted) throws IOException {
+        Index index = Index.open(snapshot);
+        long tail = snapshot.committed - (index == null ? 0 : index.covered);
+        if (index == null || tail > Math.max(1 << 16, index.covered * INDEX_TAIL_LIMIT)
+                || !readTail(snapshot, index.covered, added, deleted)) {
+            writeIndex(snapshot);
+            added.clear();
+            deleted.clear();
+            index = Index.open(snapshot);
+        }
+        return index;
+    }
+
+    private static List<String> words(String text) {
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean inWord = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    private static boolean matches(List<String> have, List<String> words, List<Boolean> prefix) {
+        for (int i = 0; i < words.size(); i++) {
+            boolean found = false;
+            for (String w : have) {
+                if (prefix.get(i) ? w.startsWith(words.get(i)) : w.equals(words.get(i))) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] out = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                out[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // Collects the snapshot's records from offset on; false if it meets a
+    // kind the delta can't apply (a text-only record from an old log)
+    private static boolean readTail(Snapshot snapshot, long offset, Map<Integer, Item> added, Set<Integer> deleted)
+            throws IOException {
+        MappedByteBuffer map = snapshot.file.map(FileChannel.MapMode.READ_ONLY, offset, snapshot.committed - offset);
+        try {
+            while (map.hasRemaining()) {
+                byte op = map.get();
+                if (op == OP_ITEM) {
+                    int id = map.getInt();
+                    int priority = map.getInt();
+                    int due = map.getInt();
+                    added.put(id, new Item(id, readText(map), priority, due));
+                } else if (op == OP_DELETE) {
+                    int id = map.getInt();
+                    if (added.remove(id) == null) {
+                        deleted.add(id);
+                    }
+                } else {
+                    return false;
+                }
+            }
+        } catch (BufferUnderflowException e) {
+            return false;   // Corrupt; a full replay copes
+        }
+        return true;
+    }
+
+    // Loads the list as of the snapshot and writes the index for it
+    private static void writeIndex(Snapshot snapshot) throws IOException {
+        catchUp(snapshot);
+        Map<String, List<Integer>> postings = new HashMap<>();
+        for (Item item : items.values()) {   // In ID order, so each posting list comes out sorted
+            for (String w : new LinkedHashSet<>(words(item.text))) {
+                postings.computeIfAbsent(w, k -> new ArrayList<>()).add(item.id);
+            }
+        }
+        List<byte[]> terms = new ArrayList<>();
+        for (String w : postings.keySet()) {
+            terms.add(w.getBytes(StandardCharsets.UTF_8));
+        }
+        terms.sort(Arrays::compareUnsigned);
+        int termBytes = 0, postingCount = 0;
+        for (byte[] t : terms) {
+            termBytes += t.length;
+            postingCount += postings.get(new String(t, StandardCharsets.UTF_8)).size();
+        }
+
+        Path tmp = Paths.get(INDEX_PATH + "." + ProcessHandle.current().pid() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeLong(logBytes);
+            out.writeLong(generation);
+            out.writeLong(logIdentity(logFile, logBytes));
+            out.writeInt(terms.size());
+            out.writeInt(termBytes);
+            out.writeInt(postingCount);
+            out.writeInt(items.size());
+            // Word table: where each word's bytes and postings start, and how many
+            int at = 0, posting = 0;
+            for (byte[] t : terms) {
+                int n = postings.get(new String(t, StandardCharsets.UTF_8)).size();
+                out.writeInt(at);
+                out.writeInt(posting);
+                out.writeInt(n);
+                at += t.length;
+                posting += n;
+            }
+            for (byte[] t : terms) {
+                out.write(t);
+            }
+            for (byte[] t : terms) {
+                for (int id : postings.get(new String(t, StandardCharsets.UTF_8))) {
+                    out.writeInt(id);
+                }
+            }
+            // Item table by ID, then the items
+            long offset = 0;
+            for (Item item : items.values()) {
+                out.writeInt(item.id);
+                out.writeLong(offset);
+                offset += 12 + utf8Length(item.text);
+            }
+            for (Item item : items.values()) {
+                byte[] bytes = item.text.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(item.priority);
+                out.writeInt(item.due);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        Files.move(tmp, Paths.get(INDEX_PATH), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Checksum of the log's first and last IDENTITY_WINDOW bytes before end
+    private static long logIdentity(FileChannel file, long end) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(readLog(file, 0, (int) Math.min(IDENTITY_WINDOW, end)));
+        long from = Math.max(IDENTITY_WINDOW, end - IDENTITY_WINDOW);
+        crc.update(readLog(file, from, (int) Math.max(0, end - from)));
+        return crc.getValue();
+    }
+
+    private static ByteBuffer readLog(FileChannel file, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (file.read(buf, position + buf.position()) < 0) {
+                break;   // Shorter than it claims; the checksum won't match
+            }
+        }
+        return buf.flip();
+    }
+
+    static class Index {
+        final long covered;   // Log bytes it reflects
+        private final MappedByteBuffer map;
+        private final int terms, termTable, termBytes, postings, itemTable, itemData, itemCount;
+
+        private Index(MappedByteBuffer map, long covered, int headerEnd, int terms, int termBytes,
+                      int postingCount, int itemCount) {
+            this.map = map;
+            this.covered = covered;
+            this.terms = terms;
+            this.termTable = headerEnd;
+            this.termBytes = termTable + 12 * terms;
+            this.postings = this.termBytes + termBytes;
+            this.itemTable = postings + 4 * postingCount;
+            this.itemData = itemTable + 12 * itemCount;
+            this.itemCount = itemCount;
+        }
+
+        // Null unless todo.idx exists and was built for the snapshot's log
+        static Index open(Snapshot snapshot) throws IOException {
+            Path path = Paths.get(INDEX_PATH);
+            if (!Files.exists(path)) {
+                return null;
+            }
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (map.getInt(0) != INDEX_MAGIC) {
+                    return null;
+                }
+                long covered = map.getLong(4);
+                if (map.getLong(12) != snapshot.generation || covered > snapshot.committed
+                        || map.getLong(20) != logIdentity(snapshot.file, covered)) {
+                    return null;
+                }
+                return new Index(map, covered, 44, map.getInt(28), map.getInt(32), map.getInt(36), map.getInt(40));
+            }
+        }
+
+        // IDs of items with the word (or, for a prefix, any word starting
+        // with it), ascending
+        int[] lookup(String word, boolean prefix) {
+            byte[] w = word.getBytes(StandardCharsets.UTF_8);
+            int lo = 0, hi = terms;   // First term ≥ w
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (compare(mid, w) < 0) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            if (!prefix) {
+                return lo < terms && compare(lo, w) == 0 ? postings(lo) : new int[0];
+            }
+            int[] out = new int[0];
+            for (int t = lo; t < terms && startsWith(t, w); t++) {
+                out = union(out, postings(t));
+            }
+            return out;
+        }
+
+        Item item(int id) {
+            int lo = 0, hi = itemCount - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int at = itemTable + 12 * mid;
+                int found = map.getInt(at);
+                if (found < id) {
+                    lo = mid + 1;
+                } else if (found > id) {
+                    hi = mid - 1;
+                } else {
+                    int data = itemData + (int) map.getLong(at + 4);
+                    byte[] bytes = new byte[map.getInt(data + 8)];
+                    map.get(data + 12, bytes);
+                    return new Item(id, new String(bytes, StandardCharsets.UTF_8), map.getInt(data), map.getInt(data + 4));
+                }
+            }
+            return null;
+        }
+
+        private int[] postings(int term) {
+            int start = map.getInt(termTable + 12 * term + 4);
+            int[] ids = new int[map.getInt(termTable + 12 * term + 8)];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = map.getInt(postings + 4 * (start + i));
+            }
+            return ids;
+        }
+
+        private int termStart(int term) {
+            return termBytes + map.getInt(termTable + 12 * term);
+        }
+
+        private int termEnd(int term) {
+            return term + 1 < terms ? termStart(term + 1) : postings;
+        }
+
+        private int compare(int term, byte[] w) {
+            int a = termStart(term), n = termEnd(term) - a;
+            for (int i = 0; i < Math.min(n, w.length); i++) {
+                int c = Byte.toUnsignedInt(map.get(a + i)) - Byte.toUnsignedInt(w[i]);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return n - w.length;
+        }
+
+        private boolean startsWith(int term, byte[] w) {
+            int a = termStart(term);
+            if (termEnd(term) - a < w.length) {
+                return false;
+            }
+            for (int i = 0; i < w.length; i++) {
+                if (map.get(a + i) != w[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static int[] union(int[] a, int[] b) {
+            int[] out = new int[a.length + b.length];
+            int n = 0, i = 0, j = 0;
+            while (i < a.length || j < b.length) {
+                if (j == b.length || (i < a.length && a[i] < b[j])) {
+                    out[n++] = a[i++];
+                } else if (i == a.length || b[j] < a[i]) {
+                    out[n++] = b[j++];
+                } else {
+                    out[n++] = a[i++];
+                    j++;
+                }
+            }
+            return Arrays.copyOf(out, n);
+        }
+    }
+
+    // — DAEMON —
+    // `java Todo daemon` loads the list once and serves commands on a Unix
+    // domain socket; every other invocation first tries to hand its command
+    // to it and falls back to working on the files directly when nothing is
+    // listening. A request is the argument count then each argument
+    // (writeUTF); the reply is the command's output, ended by the daemon
+    // closing the connection. Each connection gets its own thread, so a
+    // client slow to send its request holds up no one else, and is hung up
+    // on after REQUEST_TIMEOUT_MS; the commands themselves still run one at
+    // a time. Each command's log records are committed before its reply is
+    // sent, under the same write lock as any other process, so one that
+    // found no daemon and worked on the files meanwhile loses nothing.
+    // Search runs against the index mapped at startup plus the changes made
+    // since, kept in memory. Failures no client asked about go to the
+    // daemon's standard error. A request with more than MAX_REQUEST_ARGS
+    // arguments or MAX_REQUEST_BYTES of them is refused before anything is
+    // allocated for it; a client whose command is that big doesn't send it,
+    // and works on the files itself.
+
+    static final long REQUEST_TIMEOUT_MS = 5000;
+    static final int MAX_REQUEST_ARGS = 10_000;
+    static final int MAX_REQUEST_BYTES = 1 << 20;   // All the arguments, as writeUTF sends them
+
+    static boolean resident;
+    static Index residentIndex;
+    static Map<Integer, Item> residentAdded = new LinkedHashMap<>();
+    static Set<Integer> residentDeleted = new HashSet<>();
+    static volatile boolean stopping;
+
+    private static void daemon() {
+        Path socket = Paths.get(SOCKET_PATH);
+        if (forward(new String[] { "ping" })) {
+            return;
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            refresh();
+            resident = true;
+            residentIndex = openIndex(loaded(), residentAdded, residentDeleted);
+            Files.deleteIfExists(socket);   // Left by a daemon that didn't stop cleanly
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.out.println("Serving " + items.size() + " todos on " + SOCKET_PATH + "; `java Todo stop` ends it.");
+            Timer deadlines = new Timer("todo-deadlines", true);
+            while (!stopping) {
+                SocketChannel client;
+                try {
+                    client = server.accept();
+                } catch (ClosedChannelException e) {
+                    break;   // Closed by `stop`
+                }
+                // Not daemon threads: the JVM finishes every reply before exiting
+                new Thread(() -> serve(server, client, deadlines), "todo-client").start();
+            }
+        } catch (IOException e) {
+            System.out.println("Failed to run the daemon: " + e);
+        } finally {
+            try {
+                Files.deleteIfExists(socket);
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+
+    private static void serve(ServerSocketChannel server, SocketChannel client, Timer deadlines) {
+        TimerTask hangUp = new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    client.close();   // Fails the read blocked on it
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+        };
+        boolean stop = false;
+        try (client) {
+            deadlines.schedule(hangUp, REQUEST_TIMEOUT_MS);
+            String[] args = readRequest(client);
+            hangUp.cancel();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            synchronized (Todo.class) {   // Compaction swaps the log under this lock
+                reply = new PrintStream(output, true, StandardCharsets.UTF_8);
+                if (args == null) {
+                    reply.println("Request refused: at most " + MAX_REQUEST_ARGS + " arguments and "
+                            + MAX_REQUEST_BYTES + " bytes.");
+                } else if (stopping) {
+                    reply.println("The daemon is stopping.");
+                } else if (args.length == 0) {
+                    reply.println("Please provide a method and list of what to add or remove");
+                } else if (args[0].equals("ping")) {
+                    reply.println("A daemon is already serving " + SOCKET_PATH + ".");
+                } else if (args[0].equals("stop")) {
+                    reply.println("Daemon stopped.");
+                    stopping = stop = true;
+                } else {
+                    run(args);
+                }
+                reply = System.out;
+            }
+            compactInBackground();
+            ByteBuffer bytes = ByteBuffer.wrap(output.toByteArray());
+            while (bytes.hasRemaining()) {
+                client.write(bytes);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to answer a client: " + e);
+        } finally {
+            hangUp.cancel();
+            if (stop) {
+                try {
+                    server.close();   // Ends the accept loop
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            }
+        }
+    }
+
+    // Null if the request is over the limits
+    private static String[] readRequest(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(client)));
+        int count = in.readInt();
+        if (count < 0 || count > MAX_REQUEST_ARGS) {
+            return null;
+        }
+        String[] args = new String[count];
+        int budget = MAX_REQUEST_BYTES;
+        for (int i = 0; i < count; i++) {
+            int length = in.readUnsignedShort();
+            budget -= 2 + length;
+            if (budget < 0) {
+                return null;
+            }
+            byte[] arg = new byte[2 + length];   // readUTF's input: the length, then the bytes
+            arg[0] = (byte) (length >> 8);
+            arg[1] = (byte) length;
+            in.readFully(arg, 2, length);
+            args[i] = new DataInputStream(new ByteArrayInputStream(arg)).readUTF();
+        }
+        return args;
     }
 
-    private static void add(String item) {
-        list.add(item);
-        saveListToFile();
+    // Hands the command to a running daemon and prints its reply; false if
+    // none answers, so the caller can do the work itself
+    private static boolean forward(String[] args) {
+        Path socket = Paths.get(SOCKET_PATH);
+        if (!Files.exists(socket) || args.length > MAX_REQUEST_ARGS) {
+            return false;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream request = new DataOutputStream(bytes);
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+        } catch (IOException e) {
+            return false;   // An argument too long for writeUTF
+        }
+        if (bytes.size() - 4 > MAX_REQUEST_BYTES) {
+            return false;   // More than the daemon takes
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return false;   // A stale socket file
+        }
+        try (channel) {
+            ByteBuffer request = ByteBuffer.wrap(bytes.toByteArray());
+            while (request.hasRemaining()) {
+                channel.write(request);
+            }
+            Channels.newInputStream(channel).transferTo(System.out);
+            System.out.flush();
+        } catch (IOException e) {
+            System.out.println("Lost the daemon mid-command: " + e);
+        }
+        return true;
+    }
+
+    // — LOG —
+    // Any number of processes can share the list. todo.ctl, mapped by each,
+    // says how much of the log is committed and which generation of the log
+    // file that is (compaction starts a new one), behind a sequence number
+    // that is odd while a writer changes them. A reader replays up to the
+    // committed length, reading the two again if the sequence moved
+    // meanwhile, and takes no lock. A writer holds an exclusive lock on
+    // todo.ctl while it replays what others committed since it loaded,
+    // writes its records after them and publishes the new length, so IDs
+    // never collide and removals see every add. Compaction swaps the log
+    // under the same lock.
+
+    static final String CONTROL_PATH = "data/todo.ctl";
+    static final int CONTROL_SIZE = 32;
+    static final int SEQUENCE = 0, COMMITTED = 8, GENERATION = 16, MAGIC = 24;   // Its longs
+    static final long CONTROL_MAGIC = 0x5443544CL;   // "TCTL"
+    static final VarHandle CONTROL_LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    static FileChannel control;
+    static MappedByteBuffer controlMap;
+    static FileLock writeLock;    // Held from beginWrite to endWrite
+    static FileChannel logFile;   // The log the list was loaded from
+    static long generation;       // Its generation; 0 before loading
+
+    // A consistent view of the log: a file and how much of it is committed
+    static class Snapshot {
+        final FileChannel file;
+        final long generation;
+        final long committed;
+
+        Snapshot(FileChannel file, long generation, long committed) {
+            this.file = file;
+            this.generation = generation;
+            this.committed = committed;
+        }
     }
 
-    private static void remove(String item) {
-        list.remove(item);
-        saveListToFile();
+    private static long controlLong(int offset) {
+        return (long) CONTROL_LONG.getVolatile(controlMap, offset);
     }
 
-    private static void loadListFromFile() {
+    private static void setControlLong(int offset, long value) {
+        CONTROL_LONG.setVolatile(controlMap, offset, value);
+    }
+
+    private static synchronized void openControl() throws IOException {
+        if (control == null) {
+            control = FileChannel.open(Paths.get(CONTROL_PATH), StandardOpenOption.CREATE,
+                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+            controlMap = control.map(FileChannel.MapMode.READ_WRITE, 0, CONTROL_SIZE);
+        }
+    }
+
+    private static FileChannel openLogFile() throws IOException {
+        return FileChannel.open(Paths.get(LOG_PATH), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // The committed log, read without a lock. The file is opened between
+    // the two reads of the sequence, so it is the generation read.
+    private static Snapshot snapshot() throws IOException {
+        openControl();
+        int spins = 0;
+        while (true) {
+            long sequence = controlLong(SEQUENCE);
+            if (controlLong(MAGIC) != CONTROL_MAGIC || ((sequence & 1) != 0 && ++spins > 100)) {
+                awaitWriter();
+                spins = 0;
+                continue;
+            }
+            if ((sequence & 1) != 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long gen = controlLong(GENERATION);
+            long committed = controlLong(COMMITTED);
+            FileChannel file = gen == generation ? logFile : openLogFile();
+            if (controlLong(SEQUENCE) == sequence) {
+                return new Snapshot(file, gen, committed);
+            }
+            if (file != logFile) {
+                file.close();
+            }
+        }
+    }
+
+    // The list as loaded, as a snapshot
+    private static Snapshot loaded() {
+        return new Snapshot(logFile, generation, logBytes);
+    }
+
+    // For a publish that is taking a while, a writer that died halfway
+    // through one, or a store not set up yet: waits out the writer with a
+    // shared lock, and repairs todo.ctl if that leaves it inconsistent
+    private static synchronized void awaitWriter() throws IOException {
+        FileLock lock = control.lock(0, Long.MAX_VALUE, true);
+        boolean settled;
+        try {
+            settled = controlLong(MAGIC) == CONTROL_MAGIC && (controlLong(SEQUENCE) & 1) == 0;
+        } finally {
+            lock.release();
+        }
+        if (settled) {
+            return;
+        }
+        lock = control.lock();
+        try {
+            if (controlLong(MAGIC) != CONTROL_MAGIC || (controlLong(SEQUENCE) & 1) != 0) {
+                recover();
+            }
+        } finally {
+            lock.release();
+        }
+    }
+
+    // Rebuilds todo.ctl from the log itself, with the write lock held,
+    // importing todo.txt on the first run. A partial record left at the end
+    // is dropped, and the new generation makes every process reload.
+    private static void recover() throws IOException {
+        reset();
+        if (!Files.exists(Paths.get(LOG_PATH))) {
+            importTextFile();
+        }
+        logFile = openLogFile();
+        replay(logFile, logFile.size());
+        if (logFile.size() > logBytes) {
+            logFile.truncate(logBytes);
+        }
+        generation = controlLong(GENERATION) + 1;
+        endPublish(beginPublish(), logBytes, generation);
+        setControlLong(MAGIC, CONTROL_MAGIC);
+    }
+
+    // Between these the sequence is odd, and readers wait
+    private static long beginPublish() {
+        long sequence = controlLong(SEQUENCE) | 1;
+        setControlLong(SEQUENCE, sequence);
+        return sequence;
+    }
+
+    private static void endPublish(long sequence, long committed, long gen) {
+        setControlLong(COMMITTED, committed);
+        setControlLong(GENERATION, gen);
+        setControlLong(SEQUENCE, sequence + 1);
+    }
+
+    // Brings the list up to what is committed
+    private static synchronized void refresh() throws IOException {
+        catchUp(snapshot());
+    }
+
+    private static synchronized void catchUp(Snapshot snapshot) throws IOException {
+        if (snapshot.generation != generation) {
+            reset();
+            logFile = snapshot.file;
+            generation = snapshot.generation;
+        }
+        replay(logFile, snapshot.committed);
+    }
+
+    // Forgets the list, before loading another generation of the log
+    private static void reset() {
+        items.clear();
+        itemsByText.clear();
+        nextId = 1;
+        heap = new Item[16];
+        heapSize = 0;
+        logRecords = 0;
+        logBytes = 0;
+        residentIndex = null;
+        residentAdded.clear();
+        residentDeleted.clear();
+        if (logFile != null) {
+            try {
+                logFile.close();
+            } catch (IOException e) {
+                reply.println(e);
+            }
+            logFile = null;
+        }
+        generation = 0;
+    }
+
+    // Applies the log's records from logBytes up to `to`
+    private static void replay(FileChannel file, long to) throws IOException {
+        if (to <= logBytes) {
+            return;
+        }
+        long from = logBytes;
+        MappedByteBuffer map = file.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        try {
+            while (map.hasRemaining()) {
+                byte op = map.get();
+                if (op == OP_ITEM) {
+                    int id = map.getInt();
+                    int priority = map.getInt();
+                    int due = map.getInt();
+                    put(new Item(id, readText(map), priority, due));
+                } else if (op == OP_DELETE) {
+                    Item item = items.get(map.getInt());
+                    if (item != null) {
+                        drop(item);
+                    }
+                } else if (op == OP_ADD || op == OP_REMOVE) {
+                    String text = readText(map);
+                    if (op == OP_ADD) {
+                        put(new Item(nextId, text, 0, NO_DUE));
+                    } else if (itemsByText.containsKey(text)) {
+                        drop(itemsByText.get(text).peekFirst());
+                    }
+                } else {
+                    break;
+                }
+                logRecords++;
+                logBytes = from + map.position();
+            }
+        } catch (BufferUnderflowException e) {
+            // Cut short by a crash
+        }
+        if (logBytes < to) {
+            reply.println("Ignoring a partial record at the end of the log.");
+        }
+    }
+
+    private static String readText(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0 || length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int utf8Length(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void importTextFile() {
         try (BufferedReader reader = new BufferedReader(new FileReader(FILE_PATH))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                list.add(line);
+                put(new Item(nextId, line, 0, NO_DUE));
             }
+        } catch (FileNotFoundException e) {
+            // Nothing to import
+        } catch (IOException e) {
+            reply.println(e);
+        }
+        try {
+            Path tmp = Paths.get(LOG_PATH + ".tmp");
+            writeItems(tmp, items.values());
+            Files.move(tmp, Paths.get(LOG_PATH), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logRecords = items.size();
+            logBytes = Files.size(Paths.get(LOG_PATH));
         } catch (IOException e) {
-            System.out.println(e);
+            reply.println("Failed to create the log: " + e);
         }
     }
 
-    private static void saveListToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(FILE_PATH))) {
-            for (String item : list) {
-                writer.write(item);
-                writer.newLine();
+    // Takes the write lock and catches up with what other processes have
+    // committed. Most of that replay happens before the lock is taken,
+    // leaving only the latest records to read while others wait.
+    private static synchronized void beginWrite() throws IOException {
+        refresh();
+        writeLock = control.lock();
+        if ((controlLong(SEQUENCE) & 1) != 0) {
+            recover();   // A writer died mid-publish
+        } else {
+            long gen = controlLong(GENERATION);
+            catchUp(new Snapshot(gen == generation ? logFile : openLogFile(), gen, controlLong(COMMITTED)));
+        }
+        if (logFile.size() > logBytes) {
+            logFile.truncate(logBytes);   // Written by a writer that died before committing
+        }
+    }
+
+    // Writes the command's records after the committed ones, then publishes
+    // them. The records are forced first: todo.ctl is mapped, so the kernel
+    // may write it back at any moment, and it must never count bytes that a
+    // power cut could still take back.
+    private static synchronized void commit() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(pending.toByteArray());
+        for (long at = logBytes - bytes.remaining(); bytes.hasRemaining(); ) {
+            at += logFile.write(bytes, at);
+        }
+        logFile.force(false);
+        pending.reset();
+        endPublish(beginPublish(), logBytes, generation);
+    }
+
+    // Releases the write lock. Records left uncommitted put the list ahead
+    // of the log, so it is reloaded next time.
+    private static synchronized void endWrite() {
+        if (pending.size() > 0) {
+            pending.reset();
+            generation = 0;
+        }
+        if (writeLock != null) {
+            try {
+                writeLock.release();
+            } catch (IOException e) {
+                reply.println(e);
+            }
+            writeLock = null;
+        }
+    }
+
+    private static synchronized void append(Item item) {
+        try {
+            logBytes += writeItem(log, item);
+            logRecords++;
+        } catch (IOException e) {
+            reply.println("Failed to save the list.");
+        }
+    }
+
+    private static synchronized void appendDelete(int id) {
+        try {
+            log.writeByte(OP_DELETE);
+            log.writeInt(id);
+            logBytes += 5;
+            logRecords++;
+        } catch (IOException e) {
+            reply.println("Failed to save the list.");
+        }
+    }
+
+    // Returns the bytes written
+    private static int writeItem(DataOutputStream out, Item item) throws IOException {
+        byte[] bytes = item.text.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(OP_ITEM);
+        out.writeInt(item.id);
+        out.writeInt(item.priority);
+        out.writeInt(item.due);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return 17 + bytes.length;
+    }
+
+    private static void writeItems(Path path, Collection<Item> live) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 1 << 16))) {
+            for (Item item : live) {
+                writeItem(out, item);
+            }
+        }
+    }
+
+    // Compaction writes a copy of the live list on its own thread, off the
+    // command's path; the JVM waits for it before exiting. Records committed
+    // meanwhile, by this process or another, are copied across under the
+    // write lock before the swap, so none are lost.
+    private static synchronized void compactInBackground() {
+        long dead = logRecords - items.size();
+        if (generation == 0 || logRecords < COMPACT_MIN_RECORDS || dead < logRecords * COMPACT_GARBAGE_RATIO
+                || (compactor != null && compactor.isAlive())) {
+            return;
+        }
+        List<Item> live = new ArrayList<>(items.values());
+        long fromBytes = logBytes, fromRecords = logRecords, fromGeneration = generation;
+        compactor = new Thread(() -> compact(live, fromBytes, fromRecords, fromGeneration), "todo-compactor");
+        compactor.start();
+    }
+
+    private static void compact(List<Item> live, long fromBytes, long fromRecords, long fromGeneration) {
+        Path path = Paths.get(LOG_PATH);
+        Path tmp = Paths.get(LOG_PATH + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            writeItems(tmp, live);
+            synchronized (Todo.class) {
+                FileLock lock = control.lock();
+                try {
+                    if (controlLong(GENERATION) != fromGeneration || generation != fromGeneration
+                            || (controlLong(SEQUENCE) & 1) != 0) {
+                        return;   // Another process compacted first, or the list was reloaded
+                    }
+                    long committed = controlLong(COMMITTED);
+                    try (FileChannel to = FileChannel.open(tmp, StandardOpenOption.APPEND)) {
+                        for (long done = fromBytes; done < committed; ) {
+                            done += logFile.transferTo(done, committed - done, to);
+                        }
+                        to.force(false);   // On disk before it replaces the log, as in commit()
+                    }
+                    long size = Files.size(tmp);
+                    // Should the move fail, the sequence stays odd and the next
+                    // process to notice rebuilds todo.ctl from whichever log is there
+                    long sequence = beginPublish();
+                    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    endPublish(sequence, size, fromGeneration + 1);
+                    if (logBytes == committed) {
+                        logFile.close();
+                        logFile = openLogFile();
+                        generation = fromGeneration + 1;
+                        logRecords = live.size() + (logRecords - fromRecords);
+                        logBytes = size;
+                    } else {
+                        generation = 0;   // Others committed records the list hasn't replayed
+                    }
+                } finally {
+                    lock.release();
+                }
             }
         } catch (IOException e) {
-            System.out.println("Failed to save the list.");
+            System.err.println("Failed to compact the log: " + e);
+        } finally {
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                System.err.println(e);
+            }
         }
     }
 }
@@ -0,0 +1,98 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Starts `java Bank serve` in a throwaway directory, funds one account, then
+// sends zero and negative amounts over TCP from another. Each must come back
+// ERR and leave both balances untouched.
+//
+//   javac -d out *.java test/*.java && java -cp out BankProtocolTest
+public class BankProtocolTest {
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("bank-test");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Process server = TestSupport.java(dir, "Bank", "serve", Integer.toString(port)).start();
+        try {
+            BufferedReader log = new BufferedReader(new InputStreamReader(
+                    server.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = log.readLine()) != null && !line.startsWith("Bank listening")) {
+                // Startup chatter
+            }
+            TestSupport.check(line != null, "the server exited before listening");
+            Thread drain = new Thread(() -> log.lines().count());   // So it never blocks on output
+            drain.setDaemon(true);
+            drain.start();
+
+            List<String> failures = new ArrayList<>();
+            try (Session victim = new Session(port); Session attacker = new Session(port)) {
+                String created = victim.request("CREATE,victim,pw");
+                String account = created.substring(created.indexOf(',') + 1);
+                victim.request("DEPOSIT,500");
+                attacker.request("CREATE,attacker,pw");
+                String[][] cases = {
+                    { "TRANSFER," + account + ",-500", "ERR" },
+                    { "WITHDRAW,-10",  "ERR" },
+                    { "DEPOSIT,-1000", "ERR" },
+                    { "DEPOSIT,0",     "ERR" },
+                    { "WITHDRAW,0",    "ERR" },
+                    { "BALANCE",       "OK,0.00" },
+                };
+                for (String[] c : cases) {
+                    String reply = attacker.request(c[0]);
+                    if (reply == null || !reply.startsWith(c[1])) {
+                        failures.add(c[0] + " -> " + reply);
+                    }
+                }
+                String left = victim.request("BALANCE");
+                if (!"OK,500.00".equals(left)) {
+                    failures.add("victim BALANCE -> " + left);
+                }
+            }
+            TestSupport.check(failures.isEmpty(), "the server accepted bad requests:\n  "
+                    + String.join("\n  ", failures));
+            System.out.println("BankProtocolTest passed");
+        } finally {
+            server.destroy();
+            server.waitFor();
+            TestSupport.delete(dir);
+        }
+    }
+
+    // One client connection, a request line and its reply line at a time
+    private static class Session implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader in;
+        private final BufferedWriter out;
+
+        Session(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        }
+
+        String request(String line) throws IOException {
+            out.write(line);
+            out.write('\n');
+            out.flush();
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
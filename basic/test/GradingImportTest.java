@@ -0,0 +1,61 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+// Runs `java Grading` in a throwaway directory: sets up a teacher, two
+// students and three subjects through the menus, imports a CSV, exports
+// it again and checks every grade landed in the subject its row named.
+//
+//   javac -d out *.java test/*.java && java -cp out GradingImportTest
+public class GradingImportTest {
+    public static void main(String[] args) throws Exception {
+        Path dir = Files.createTempDirectory("grading-test");
+        try {
+            // Teacher 1000, students 1001 and 1002, subjects 1003-1005
+            grading(dir, String.join("\n",
+                    "1", "t", "pw", "Teacher One",
+                    "2", "s1", "pw", "Student One",
+                    "2", "s2", "pw", "Student Two",
+                    "3", "t", "pw",
+                    "1", "Math", "1", "Art", "1", "Q",
+                    "12", "5", ""));
+
+            Files.write(dir.resolve("in.csv"), List.of(
+                    "subject,student_id,grade",
+                    "Math,1001,90",
+                    "Art,999999,80",      // Rejected after its name was looked up
+                    "Art,1002,70",
+                    "Art,1001,60",
+                    "\"Q\",1001,50",      // Quoted, between two Art rows
+                    "Art,1002,71",
+                    "Math,1002,40"));
+            String out = grading(dir, "", "import", "in.csv");
+            TestSupport.check(out.contains("1 rejected"), "one row rejected:\n" + out);
+
+            grading(dir, "", "export", "out.csv");
+            List<String> rows = Files.readAllLines(dir.resolve("out.csv"));
+            List<String> want = List.of(
+                    "subject,student_id,grade",
+                    "Math,1001,90",
+                    "Math,1002,40",
+                    "Art,1001,60",
+                    "Art,1002,71",
+                    "Q,1001,50");
+            TestSupport.check(rows.equals(want), "exported " + rows + ", expected " + want);
+            System.out.println("GradingImportTest passed");
+        } finally {
+            TestSupport.delete(dir);
+        }
+    }
+
+    // Runs Grading with the given input and arguments in dir; returns what it printed
+    private static String grading(Path dir, String stdin, String... args) throws Exception {
+        Process p = TestSupport.java(dir, "Grading", args).start();
+        p.getOutputStream().write(stdin.getBytes(StandardCharsets.UTF_8));
+        p.getOutputStream().close();
+        String out = new String(p.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        TestSupport.check(p.waitFor() == 0, "Grading " + String.join(" ", args) + " failed:\n" + out);
+        return out;
+    }
+}
@@ -0,0 +1,47 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// What the tests share: each runs the program under test as a child JVM in
+// a scratch directory, so its data/ never touches the real one.
+final class TestSupport {
+    private TestSupport() {}
+
+    // A child JVM running mainClass with args, in dir, on this JVM's class path
+    static ProcessBuilder java(Path dir, String mainClass, String... args) {
+        List<String> command = new ArrayList<>(List.of("java", "-cp", classPath(), mainClass));
+        command.addAll(Arrays.asList(args));
+        return new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true);
+    }
+
+    // Made absolute, since the child runs elsewhere
+    private static String classPath() {
+        return Arrays.stream(System.getProperty("java.class.path").split(File.pathSeparator))
+                .map(e -> Paths.get(e).toAbsolutePath().toString())
+                .collect(Collectors.joining(File.pathSeparator));
+    }
+
+    static void check(boolean ok, String message) {
+        if (!ok) throw new AssertionError(message);
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> {
+                try {
+                    Files.delete(p);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+    }
+}